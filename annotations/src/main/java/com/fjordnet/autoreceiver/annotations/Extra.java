@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Indicates that a parameter of a method annotated with {@link OnReceiveBroadcast} is passed
+ * an extra of the broadcast intent, rather than the intent itself.
+ * </p><p>
+ * The extra is read with the accessor of the parameter's type, e.g. {@code getIntExtra} for an
+ * {@code int} parameter, so primitive extras aren't boxed. The supported types are primitives,
+ * {@code String}, {@code CharSequence}, {@code Bundle}, arrays of these (except {@code Bundle}),
+ * {@code ArrayList<String>}, {@code ArrayList<Integer>}, {@code Parcelable} and
+ * {@code Serializable} types. The type of each parameter is checked at compile time.
+ * </p>
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.PARAMETER)
+public @interface Extra {
+
+    /**
+     * The name of the extra.
+     *
+     * @return the name of the extra passed to the parameter.
+     */
+    String value();
+
+    /**
+     * Specifies the value passed to a primitive parameter if the intent has no such extra:
+     * a decimal number for numeric types, e.g. {@code "-1"} or {@code "0.5"}, {@code "true"} or
+     * {@code "false"} for {@code boolean}, and a single character for {@code char}, e.g.
+     * {@code "q"}. Java literal syntax, such as {@code "0x10"}, {@code "1_000"}, {@code "10L"}
+     * or {@code "'q'"}, isn't supported. The default, an empty string, is {@code 0} or
+     * {@code false}. Other types are passed {@code null}.
+     *
+     * @return the value passed to a primitive parameter if the intent has no such extra.
+     */
+    String defaultValue() default "";
+}
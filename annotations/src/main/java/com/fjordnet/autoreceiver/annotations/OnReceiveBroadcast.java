@@ -35,6 +35,14 @@ import java.lang.annotation.Target;
  * The annotated method may have no parameters, one {@code Intent} parameter, which is the
  * intent passed to the broadcast receiver, or two parameters: the {@code Intent} and the
  * {@code BroadcastReceiver} instance itself.
+ * </p><p>
+ * The annotated method may also have an {@code int} parameter, which is passed the index of
+ * the action of the broadcast within {@link #value()}. The action is matched once, by
+ * a switch generated at compile time, so the method doesn't need to compare it again.
+ * </p><p>
+ * The annotated method may also have a {@code BroadcastReceiver.PendingResult} parameter,
+ * which is passed the result of {@code goAsync()}: the method is then responsible for finishing
+ * it, e.g. once work handed to another thread completes. Can't be combined with {@link #local()}.
  * </p>
  */
 @Documented
@@ -66,4 +74,100 @@ public @interface OnReceiveBroadcast {
      * will be unregistered.
      */
     String unregisterIn() default "onStop";
+
+    /**
+     * Specifies the name of the background thread on which the annotated method is invoked.
+     * The thread is managed by the runtime library, and shared by all methods specifying the same
+     * name. The default, an empty name, invokes the annotated method on the main thread.
+     *
+     * @return the name of the thread on which the annotated method is invoked, or an empty
+     * string for the main thread.
+     */
+    String thread() default "";
+
+    /**
+     * Specifies whether the generated broadcast receiver is registered with the in-process
+     * dispatcher of the runtime library, rather than with the system. Local receivers only
+     * receive broadcasts sent with {@code LocalBroadcasts.send}, which are delivered without
+     * a round trip through the system. The default is {@code false}.
+     *
+     * @return {@code true} if the generated broadcast receiver only receives broadcasts sent
+     * from within the app.
+     */
+    boolean local() default false;
+
+    /**
+     * Specifies whether the annotated method is invoked with the current sticky intent of its
+     * actions, e.g. {@code ACTION_BATTERY_CHANGED}, as soon as the generated broadcast receiver
+     * is registered, rather than once the system delivers it. The sticky intent is the one
+     * returned by the registration, so no additional lookup is needed. The default is
+     * {@code false}. Can't be combined with {@link #local()}.
+     *
+     * @return {@code true} if the current sticky intent is delivered on registration.
+     */
+    boolean sticky() default false;
+
+    /**
+     * Specifies whether the generated broadcast receiver shares its registration with the system
+     * with the receivers of all components of the app registered for the same actions. A single
+     * receiver is then registered with the system for each distinct set of actions, and
+     * broadcasts are fanned out in-process. The default is {@code false}.
+     * Can't be combined with {@link #local()} or {@link #async()}.
+     *
+     * @return {@code true} if the registration with the system is shared.
+     */
+    boolean shared() default false;
+
+    /**
+     * Specifies whether the generated broadcast receiver is registered once the main thread is
+     * idle, e.g. once the screen is drawn, rather than in {@link #registerIn()} itself, so that
+     * the registration doesn't delay it. Broadcasts sent in the meantime aren't received.
+     * The registration is cancelled if the receiver is unregistered first. The default is
+     * {@code false}.
+     *
+     * @return {@code true} if the registration is deferred until the main thread is idle.
+     */
+    boolean deferred() default false;
+
+    /**
+     * Specifies the priority of a deferred registration. Registrations with a higher priority
+     * are run first. Registrations are run in batches of a few milliseconds: once a batch has
+     * run, the next one is run as soon as the main thread is idle again, until none is left.
+     * The default is {@code 0}. Requires {@link #deferred()}.
+     *
+     * @return the priority of the deferred registration.
+     */
+    int priority() default 0;
+
+    /**
+     * Specifies the quiet period, in milliseconds, after which the annotated method is invoked
+     * with the latest intent of a burst of broadcasts. Broadcasts received during the period
+     * restart it. The default, {@code 0}, invokes the annotated method for every broadcast.
+     * Can't be combined with {@link #throttle()}.
+     *
+     * @return the quiet period after which the latest intent is delivered, in milliseconds.
+     */
+    long debounce() default 0;
+
+    /**
+     * Specifies the minimum time, in milliseconds, between two invocations of the annotated
+     * method. A broadcast is delivered immediately if none was delivered during that time;
+     * otherwise only the latest intent is delivered, once that time has elapsed. The default,
+     * {@code 0}, invokes the annotated method for every broadcast.
+     * Can't be combined with {@link #debounce()}.
+     *
+     * @return the minimum time between two deliveries, in milliseconds.
+     */
+    long throttle() default 0;
+
+    /**
+     * Specifies whether the annotated method is run on a background thread, while the
+     * broadcast is kept alive with {@code goAsync()}. The pending result of the broadcast is
+     * finished when the method returns, which must happen before the system times out the
+     * broadcast, i.e. within 10 seconds. The default is {@code false}.
+     * Can't be combined with {@link #debounce()}, {@link #throttle()} or {@link #local()}.
+     *
+     * @return {@code true} if the annotated method is run on a background thread.
+     */
+    boolean async() default false;
 }
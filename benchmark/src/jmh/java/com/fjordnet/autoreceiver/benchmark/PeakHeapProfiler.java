@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.benchmark;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * <p>
+ * Reports the peak heap usage of each iteration, in megabytes, e.g. with
+ * {@code -prof com.fjordnet.autoreceiver.benchmark.PeakHeapProfiler}.
+ * </p><p>
+ * The peak usage of each heap memory pool is reset before the iteration, and the peaks of all
+ * pools are summed afterwards. Since pools don't necessarily peak at the same time, this is an
+ * upper bound of the actual peak. Allocation rates are reported by the {@code gc} profiler.
+ * </p>
+ */
+public class PeakHeapProfiler implements InternalProfiler {
+
+    @Override
+    public String getDescription() {
+        return "Peak heap usage";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams,
+            IterationParams iterationParams) {
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (MemoryType.HEAP == pool.getType()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams,
+            IterationParams iterationParams,
+            IterationResult result) {
+
+        long peakUsage = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (MemoryType.HEAP == pool.getType()) {
+                peakUsage += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return Collections.singletonList(new ScalarResult("·heap.peak",
+                peakUsage / (1024.0 * 1024.0), "MB", AggregationPolicy.MAX));
+    }
+}
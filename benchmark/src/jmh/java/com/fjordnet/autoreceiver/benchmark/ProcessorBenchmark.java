@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Measures the time taken by the annotation processor on synthetic modules of varying size,
+ * number of annotated methods per class and depth of the class hierarchy.
+ * </p><p>
+ * Each invocation compiles the module with annotation processing only. {@link #baseline()}
+ * does so without the processor, so the cost of the processor is the difference between the
+ * two. With the binder backend, this includes parsing the generated binders, as the compiler
+ * does in the following round.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessorBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int classCount;
+
+    @Param({"1", "5"})
+    public int methodCount;
+
+    @Param({"1", "10"})
+    public int depth;
+
+    @Param({"binder", "aspectj"})
+    public String backend;
+
+    private ProcessorHarness harness;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        harness = new ProcessorHarness(
+                SyntheticSources.generate(classCount, methodCount, depth), backend);
+
+        // Fail early rather than measuring a broken setup.
+        int fileCount = harness.process(true);
+        if (2 * classCount != fileCount) {
+            throw new IllegalStateException(String.format("Expected %d generated files, got %d",
+                    2 * classCount, fileCount));
+        }
+    }
+
+    @Benchmark
+    public int process() {
+        return harness.process(true);
+    }
+
+    @Benchmark
+    public int baseline() {
+        return harness.process(false);
+    }
+}
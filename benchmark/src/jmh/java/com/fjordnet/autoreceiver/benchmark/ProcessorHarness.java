@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.benchmark;
+
+import com.fjordnet.autoreceiver.annotations.AutoReceiverProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.processing.Processor;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import static java.lang.String.format;
+
+/**
+ * <p>
+ * Runs the Java compiler in-process on a set of sources, with annotation processing only,
+ * optionally with {@link AutoReceiverProcessor}. Generated files are kept in memory, so that
+ * disk I/O doesn't skew measurements.
+ * </p><p>
+ * The annotations are resolved from the classpath of the running JVM.
+ * </p>
+ */
+public final class ProcessorHarness {
+
+    private final JavaCompiler compiler;
+    private final StandardJavaFileManager standardFileManager;
+    private final List<JavaFileObject> sources;
+    private final List<String> options;
+
+    /**
+     * Create a harness for the specified sources.
+     *
+     * @param sources the sources to be processed.
+     * @param backend the {@value AutoReceiverProcessor#OPTION_BACKEND} processor option.
+     */
+    public ProcessorHarness(List<JavaFileObject> sources, String backend) {
+
+        compiler = ToolProvider.getSystemJavaCompiler();
+        if (null == compiler) {
+            throw new IllegalStateException("No Java compiler available: run on a JDK");
+        }
+
+        standardFileManager = compiler.getStandardFileManager(null, Locale.ROOT,
+                StandardCharsets.UTF_8);
+
+        this.sources = sources;
+
+        List<String> options = new ArrayList<>();
+        options.add("-proc:only");
+        options.add("-classpath");
+        options.add(System.getProperty("java.class.path"));
+        options.add(format("-A%s=%s", AutoReceiverProcessor.OPTION_BACKEND, backend));
+        this.options = Collections.unmodifiableList(options);
+    }
+
+    /**
+     * Process the sources.
+     *
+     * @param isProcessed {@code true} to run {@link AutoReceiverProcessor}, {@code false} to
+     * only parse and enter the sources, as a baseline.
+     *
+     * @return the number of generated files.
+     * @throws IllegalStateException if the compiler reports an error.
+     */
+    public int process(boolean isProcessed) {
+
+        MemoryFileManager fileManager = new MemoryFileManager(standardFileManager);
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+                options, null, sources);
+        task.setProcessors(isProcessed
+                ? Collections.<Processor>singletonList(new AutoReceiverProcessor())
+                : Collections.<Processor>emptyList());
+
+        if (!task.call()) {
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                if (Diagnostic.Kind.ERROR == diagnostic.getKind()) {
+                    throw new IllegalStateException(diagnostic.toString());
+                }
+            }
+            throw new IllegalStateException("Compilation failed");
+        }
+
+        return fileManager.outputCount;
+    }
+
+    // Keeps generated files in memory. Generated sources are read back by the compiler in the
+    // following round.
+    private static class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+        int outputCount;
+
+        MemoryFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location,
+                String className,
+                JavaFileObject.Kind kind,
+                FileObject sibling) {
+
+            outputCount++;
+            return new MemoryFile(format("%s%s", className.replace('.', '/'), kind.extension),
+                    kind);
+        }
+
+        @Override
+        public FileObject getFileForOutput(Location location,
+                String packageName,
+                String relativeName,
+                FileObject sibling) {
+
+            outputCount++;
+            return new MemoryFile(packageName.isEmpty()
+                    ? relativeName
+                    : format("%s/%s", packageName.replace('.', '/'), relativeName),
+                    JavaFileObject.Kind.OTHER);
+        }
+    }
+
+    private static class MemoryFile extends SimpleJavaFileObject {
+
+        private final StringWriter content = new StringWriter();
+
+        MemoryFile(String path, Kind kind) {
+            super(URI.create(format("memory:///%s", path)), kind);
+        }
+
+        @Override
+        public Writer openWriter() {
+            return content;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content.toString();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.benchmark;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+import static java.lang.String.format;
+
+/**
+ * <p>
+ * Generates a synthetic source tree for the annotation processor to process, along with stubs
+ * of the Android and runtime types referenced by the annotated classes and the generated code.
+ * </p><p>
+ * Annotated classes extend a chain of base classes of the specified depth. Only the root of the
+ * chain declares the registration and unregistration methods and the context accessor, so that
+ * looking them up walks the whole hierarchy. Classes are spread over packages of
+ * {@value #CLASSES_PER_PACKAGE} classes.
+ * </p>
+ */
+public final class SyntheticSources {
+
+    private static final int CLASSES_PER_PACKAGE = 100;
+
+    private static final String[][] STUBS = {
+            {"android.content.Context", "package android.content;\n"
+                    + "public abstract class Context {\n"
+                    + "    public Intent registerReceiver(BroadcastReceiver receiver,"
+                    + " IntentFilter filter) { return null; }\n"
+                    + "    public void unregisterReceiver(BroadcastReceiver receiver) {}\n"
+                    + "}\n"},
+            {"android.content.Intent", "package android.content;\n"
+                    + "public class Intent {\n"
+                    + "    public String getAction() { return null; }\n"
+                    + "}\n"},
+            {"android.content.IntentFilter", "package android.content;\n"
+                    + "public class IntentFilter {\n"
+                    + "    public void addAction(String action) {}\n"
+                    + "}\n"},
+            {"android.content.BroadcastReceiver", "package android.content;\n"
+                    + "public abstract class BroadcastReceiver {\n"
+                    + "    public static class PendingResult {}\n"
+                    + "    public abstract void onReceive(Context context, Intent intent);\n"
+                    + "}\n"},
+            {"com.fjordnet.autoreceiver.LeakDetector", "package com.fjordnet.autoreceiver;\n"
+                    + "public final class LeakDetector {\n"
+                    + "    public static void onRegistered(Object component,"
+                    + " android.content.BroadcastReceiver receiver) {}\n"
+                    + "    public static void onUnregistered("
+                    + "android.content.BroadcastReceiver receiver) {}\n"
+                    + "}\n"},
+    };
+
+    private SyntheticSources() {
+    }
+
+    /**
+     * Generate the sources of a synthetic module, including stubs.
+     *
+     * @param classCount the number of annotated classes.
+     * @param methodCount the number of annotated methods per class.
+     * @param depth the number of base classes between the annotated classes and the root of
+     * their hierarchy, which declares the lifecycle methods and the context accessor.
+     *
+     * @return the sources of the module.
+     */
+    public static List<JavaFileObject> generate(int classCount, int methodCount, int depth) {
+
+        List<JavaFileObject> sources = new ArrayList<>();
+
+        for (String[] stub : STUBS) {
+            sources.add(new Source(stub[0], stub[1]));
+        }
+
+        // Base classes, each extending the previous one.
+        sources.add(new Source("com.example.base.Base0", "package com.example.base;\n"
+                + "import android.content.Context;\n"
+                + "public class Base0 {\n"
+                + "    private Context context;\n"
+                + "    public Context getContext() { return context; }\n"
+                + "    protected void onStart() {}\n"
+                + "    protected void onStop() {}\n"
+                + "}\n"));
+
+        for (int level = 1; level < depth; level++) {
+            sources.add(new Source(format("com.example.base.Base%d", level), format(
+                    "package com.example.base;\n"
+                            + "public class Base%1$d extends Base%2$d {\n"
+                            + "    protected void onLevel%1$d() {}\n"
+                            + "}\n",
+                    level, level - 1)));
+        }
+
+        String baseName = format("com.example.base.Base%d", Math.max(0, depth - 1));
+
+        // Annotated classes, with methods taking the intent and the index of the action.
+        for (int classIndex = 0; classIndex < classCount; classIndex++) {
+
+            String packageName = format("com.example.p%d", classIndex / CLASSES_PER_PACKAGE);
+            String className = format("Receiver%d", classIndex);
+
+            StringBuilder builder = new StringBuilder()
+                    .append(format("package %s;\n", packageName))
+                    .append("import android.content.Intent;\n")
+                    .append("import com.fjordnet.autoreceiver.annotations.OnReceiveBroadcast;\n")
+                    .append(format("public class %1$s extends %2$s {\n", className, baseName));
+
+            for (int methodIndex = 0; methodIndex < methodCount; methodIndex++) {
+                builder.append(format("    @OnReceiveBroadcast({\"action.%1$d.%2$d\","
+                                + " \"action.%1$d.%2$d.alt\"})\n"
+                                + "    public void onAction%2$d(Intent intent, int index) {}\n",
+                        classIndex, methodIndex));
+            }
+
+            sources.add(new Source(format("%s.%s", packageName, className),
+                    builder.append("}\n").toString()));
+        }
+
+        return Collections.unmodifiableList(sources);
+    }
+
+    private static class Source extends SimpleJavaFileObject {
+
+        private final String content;
+
+        Source(String qualifiedName, String content) {
+            super(URI.create(format("string:///%s%s", qualifiedName.replace('.', '/'),
+                    Kind.SOURCE.extension)), Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+    }
+}
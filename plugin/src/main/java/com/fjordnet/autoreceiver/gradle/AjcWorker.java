@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import org.aspectj.bridge.IMessage;
+import org.aspectj.bridge.MessageHandler;
+import org.aspectj.tools.ajc.Main;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.util.List;
+
+import javax.inject.Inject;
+
+import static org.aspectj.bridge.IMessage.DEBUG;
+import static org.aspectj.bridge.IMessage.INFO;
+import static org.aspectj.bridge.IMessage.WARNING;
+
+/**
+ * <p>
+ * Worker running ajc to weave a single shard of the classes targeted by aspects.
+ * </p><p>
+ * The ajc weaver keeps state in static fields, so concurrent runs can't share a class loader:
+ * each worker is to be run in a worker process of its own.
+ * </p>
+ */
+public class AjcWorker implements Runnable {
+
+    private static final Logger LOGGER = Logging.getLogger(AjcWorker.class);
+
+    private final String shardName;
+    private final int classCount;
+    private final List<String> args;
+
+    /**
+     * Create a worker for the specified shard.
+     *
+     * @param shardName the name of the shard, used for reporting.
+     * @param classCount the number of classes in the shard.
+     * @param args the ajc command line arguments.
+     */
+    @Inject
+    public AjcWorker(String shardName, Integer classCount, List<String> args) {
+        this.shardName = shardName;
+        this.classCount = classCount;
+        this.args = args;
+    }
+
+    @Override
+    public void run() {
+
+        long startTime = System.nanoTime();
+        MessageHandler handler = new MessageHandler(true);
+
+        new Main().run(args.toArray(new String[args.size()]), handler);
+
+        for (IMessage message : handler.getMessages(null, true)) {
+            IMessage.Kind kind = message.getKind();
+            if (WARNING.equals(kind)) {
+                LOGGER.warn(message.getMessage(), message.getThrown());
+            } else if (INFO.equals(kind)) {
+                LOGGER.info(message.getMessage(), message.getThrown());
+            } else if (DEBUG.equals(kind)) {
+                LOGGER.debug(message.getMessage(), message.getThrown());
+            } else {
+                LOGGER.error(message.getMessage(), message.getThrown());
+            }
+        }
+
+        if (0 < handler.numMessages(IMessage.ERROR, true)) {
+            throw new GradleException("ajc failed to weave " + shardName);
+        }
+
+        LOGGER.info("AutoReceiver: woven {} ({} classes) in {} ms", shardName, classCount,
+                (System.nanoTime() - startTime) / 1000000);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Index of the aspects generated by the annotation processor for a variant.
+ * The processor writes one index file next to each generated aspect, naming the aspect and the
+ * class it targets.
+ */
+class AspectIndex {
+
+    private static final String INDEX_EXTENSION = ".index";
+    private static final String ASPECT_EXTENSION = ".aj";
+
+    private static final String KEY_ASPECT = "aspect";
+    private static final String KEY_TARGET = "target";
+
+    private final List<Entry> entries;
+
+    private AspectIndex(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Read the index files from the specified generated source directory.
+     *
+     * @param generatedSourceDir the directory to which the annotation processor writes
+     * generated sources.
+     *
+     * @return the index of the aspects found in the specified directory, which is empty if
+     * the directory doesn't exist.
+     * @throws IOException if an index file can't be read or is malformed.
+     */
+    static AspectIndex read(File generatedSourceDir) throws IOException {
+
+        List<Entry> entries = new ArrayList<>();
+        read(generatedSourceDir, entries);
+
+        return new AspectIndex(entries);
+    }
+
+    private static void read(File dir, List<Entry> entries) throws IOException {
+
+        File[] files = dir.listFiles();
+        if (null == files) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                read(file, entries);
+            } else if (file.getName().endsWith(INDEX_EXTENSION)) {
+                entries.add(readEntry(file));
+            }
+        }
+    }
+
+    private static Entry readEntry(File indexFile) throws IOException {
+
+        Properties properties = new Properties();
+        try (InputStream input = new FileInputStream(indexFile)) {
+            properties.load(input);
+        }
+
+        String aspect = properties.getProperty(KEY_ASPECT);
+        String target = properties.getProperty(KEY_TARGET);
+        if (null == aspect || null == target) {
+            throw new IOException("Malformed aspect index " + indexFile);
+        }
+
+        String indexName = indexFile.getName();
+        File aspectSource = new File(indexFile.getParentFile(),
+                indexName.substring(0, indexName.length() - INDEX_EXTENSION.length())
+                        + ASPECT_EXTENSION);
+
+        return new Entry(aspectSource, aspect.replace('.', '/'), target.replace('.', '/'));
+    }
+
+    /**
+     * Query whether the index is empty, i.e. no aspects were generated.
+     *
+     * @return {@code true} if no aspects were generated.
+     */
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Get the entries of this index.
+     *
+     * @return the entries of this index, one per generated aspect.
+     */
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Index entry of a single generated aspect.
+     */
+    static class Entry {
+
+        private final File aspectSource;
+        private final String aspectPath;
+        private final String targetPath;
+
+        private Entry(File aspectSource, String aspectPath, String targetPath) {
+            this.aspectSource = aspectSource;
+            this.aspectPath = aspectPath;
+            this.targetPath = targetPath;
+        }
+
+        /**
+         * Get the source file of the aspect.
+         *
+         * @return the source file of the aspect.
+         */
+        File getAspectSource() {
+            return aspectSource;
+        }
+
+        /**
+         * Get the path of the aspect's class, without extension, relative to the classes
+         * directory. Nested classes of the aspect share this prefix.
+         *
+         * @return the path of the aspect's class, without extension.
+         */
+        String getAspectPath() {
+            return aspectPath;
+        }
+
+        /**
+         * Get the path of the class file targeted by the aspect, relative to the classes
+         * directory.
+         *
+         * @return the path of the class file targeted by the aspect.
+         */
+        String getTargetPath() {
+            return targetPath + ".class";
+        }
+    }
+}
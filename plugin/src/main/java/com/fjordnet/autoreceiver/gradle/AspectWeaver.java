@@ -0,0 +1,652 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import com.fjordnet.autoreceiver.gradle.WeaveState.AspectRecord;
+import com.fjordnet.autoreceiver.gradle.WeaveState.ClassRecord;
+
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Weaves the aspects generated by the annotation processor into the classes they target.
+ * Only the classes listed in the {@link AspectIndex} are woven, and only the generated aspects
+ * are compiled, so ajc neither scans the other classes for join points nor the classpath for
+ * aspects.
+ * </p><p>
+ * When weaving incrementally, only the targets whose compiled class or aspect changed since the
+ * previous run are woven. The unwoven and woven versions of each target are cached, so that
+ * classes the Java compiler rewrites with unchanged content are restored from the cache rather
+ * than woven again.
+ * </p><p>
+ * Classes to be woven are moved to staging directories that are used as the ajc inpath,
+ * while the remaining classes are used as classpath. They are split, in path order so that
+ * classes of a package are kept together, into shards of a given size, each woven by a separate
+ * run of ajc along with the aspects targeting its classes. Shards are executed by a
+ * {@link ShardExecutor}, possibly in parallel; planning and recording the results is serial.
+ * </p>
+ */
+class AspectWeaver {
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    private final File classesDir;
+    private final WeaveState state;
+    private final int shardSize;
+    private final ShardExecutor executor;
+    private final WeaveReport report;
+    private final Logger logger;
+
+    /**
+     * Create a weaver for the classes in the specified directory.
+     *
+     * @param classesDir the directory containing the compiled classes. Woven classes are written
+     * back to this directory.
+     * @param stateDir the directory in which the state of the weaver is kept between runs.
+     * @param shardSize the maximum number of classes woven by a single run of ajc.
+     * @param executor the executor of the ajc runs.
+     * @param report the report to which the classes woven and the ajc wall time are recorded.
+     * @param logger the logger to which weaving progress is reported.
+     */
+    AspectWeaver(File classesDir,
+            File stateDir,
+            int shardSize,
+            ShardExecutor executor,
+            WeaveReport report,
+            Logger logger) {
+
+        if (0 >= shardSize) {
+            throw new IllegalArgumentException("Shard size must be positive: " + shardSize);
+        }
+
+        this.classesDir = classesDir;
+        this.state = WeaveState.load(stateDir);
+        this.shardSize = shardSize;
+        this.executor = executor;
+        this.report = report;
+        this.logger = logger;
+    }
+
+    /**
+     * Weave all indexed aspects into their targets.
+     *
+     * @param index the index of the aspects to be woven.
+     * @param classpath the classpath used to resolve types referenced by the classes and aspects.
+     * @param options other ajc options (e.g. bootclasspath and source level).
+     *
+     * @throws IOException if class files can't be read or written.
+     */
+    void weaveAll(AspectIndex index, String classpath, List<String> options) throws IOException {
+
+        // The state is no longer accurate once all classes are woven.
+        state.clear();
+        state.save();
+
+        Map<String, File> sources = new TreeMap<>();
+        for (AspectIndex.Entry entry : index.getEntries()) {
+            File classFile = new File(classesDir, entry.getTargetPath());
+            if (classFile.isFile()) {
+                sources.put(entry.getTargetPath(), classFile);
+            }
+        }
+
+        List<Map<String, File>> partitions = partition(sources);
+        logger.info("AutoReceiver: weaving {} classes in {} shards", sources.size(),
+                partitions.size());
+
+        report.isFullWeave = true;
+        report.targetCount = sources.size();
+        report.wovenCount = sources.size();
+        report.shardCount = partitions.size();
+
+        stage(partitions, false);
+        if (!execute(createShards(partitions, index, classpath, options))) {
+            unstage(partitions);
+        }
+    }
+
+    /**
+     * Weave the indexed aspects into the targets affected by changes since the previous run.
+     *
+     * @param index the index of the aspects to be woven.
+     * @param classpath the classpath used to resolve types referenced by the classes and aspects.
+     * @param options other ajc options (e.g. bootclasspath and source level).
+     * @param dependencies files whose modification require all classes to be woven again,
+     * e.g. classpath entries.
+     *
+     * @throws IOException if class files can't be read or written.
+     */
+    void weave(AspectIndex index,
+            String classpath,
+            List<String> options,
+            Iterable<File> dependencies) throws IOException {
+
+        String configuration = fingerprint(classpath, options, dependencies);
+        boolean isFullWeave = !configuration.equals(state.configuration);
+
+        // Determine changes to aspects.
+        Map<String, AspectRecord> aspects = new HashMap<>();
+        Set<String> affectedPaths = new HashSet<>();
+
+        for (AspectIndex.Entry entry : index.getEntries()) {
+            String key = entry.getAspectSource().getAbsolutePath();
+
+            AspectRecord aspect = new AspectRecord();
+            aspect.hash = hash(entry.getAspectSource());
+            aspect.aspectPath = entry.getAspectPath();
+            aspect.targetPath = entry.getTargetPath();
+            aspects.put(key, aspect);
+
+            AspectRecord previous = state.aspects.get(key);
+            if (null == previous || !previous.hash.equals(aspect.hash)) {
+                affectedPaths.add(aspect.targetPath);
+            }
+        }
+
+        for (Map.Entry<String, AspectRecord> entry : state.aspects.entrySet()) {
+            if (!aspects.containsKey(entry.getKey())) {
+                affectedPaths.add(entry.getValue().targetPath);
+            }
+        }
+
+        boolean isAspectChanged = isFullWeave || !affectedPaths.isEmpty();
+
+        // Determine changes to targeted classes.
+        Map<String, File> sources = new TreeMap<>();
+        Set<String> targetPaths = new HashSet<>();
+        int restoredCount = 0;
+
+        for (AspectRecord aspect : aspects.values()) {
+
+            String path = aspect.targetPath;
+            File classFile = new File(classesDir, path);
+            targetPaths.add(path);
+
+            if (!classFile.isFile()) {
+                continue;
+            }
+
+            ClassRecord record = state.classes.get(path);
+            if (null == record || null == record.inputHash) {
+                sources.put(path, classFile);
+                continue;
+            }
+
+            // Skip hashing the class if it hasn't been touched since it was woven.
+            boolean isWoven = classFile.length() == record.outputLength
+                    && classFile.lastModified() == record.outputModified;
+
+            String hash = isWoven ? record.outputHash : hash(classFile);
+            if (!isWoven && hash.equals(record.outputHash)) {
+                record.outputLength = classFile.length();
+                record.outputModified = classFile.lastModified();
+                isWoven = true;
+            }
+
+            if (isWoven || hash.equals(record.inputHash)) {
+
+                if (isFullWeave || affectedPaths.contains(path)) {
+                    sources.put(path, state.getUnwovenFile(path));
+
+                } else if (!isWoven) {
+                    // Rewritten by the Java compiler with unchanged content.
+                    restore(path);
+                    restoredCount++;
+                }
+
+            } else {
+                sources.put(path, classFile);
+            }
+        }
+
+        // Forget classes that are no longer targeted.
+        for (String path : new ArrayList<>(state.classes.keySet())) {
+            if (null != state.classes.get(path).inputHash && !targetPaths.contains(path)) {
+                state.classes.remove(path);
+                Files.deleteIfExists(state.getUnwovenFile(path).toPath());
+                Files.deleteIfExists(state.getWovenFile(path).toPath());
+            }
+        }
+
+        report.isFullWeave = isFullWeave;
+        report.targetCount = targetPaths.size();
+        report.restoredCount = restoredCount;
+
+        if (sources.isEmpty() && !isAspectChanged) {
+            restoreAspectClasses();
+            state.save();
+
+            logger.info("AutoReceiver: woven classes are up to date ({} restored)",
+                    restoredCount);
+            return;
+        }
+
+        List<Map<String, File>> partitions = partition(sources);
+        logger.info("AutoReceiver: weaving {} of {} classes in {} shards{}", sources.size(),
+                targetPaths.size(), partitions.size(), isFullWeave ? " (full)" : "");
+
+        report.wovenCount = sources.size();
+        report.shardCount = partitions.size();
+
+        // Remove the compiled aspects of the classes to be woven, which are compiled again
+        // from source, and those of removed aspects. Other compiled aspects are kept.
+        Set<String> compiledAspectPaths = new HashSet<>();
+        Set<String> obsoleteAspectPaths = new HashSet<>();
+        for (AspectRecord aspect : aspects.values()) {
+            if (sources.containsKey(aspect.targetPath)) {
+                compiledAspectPaths.add(aspect.aspectPath);
+            }
+        }
+        obsoleteAspectPaths.addAll(compiledAspectPaths);
+        for (Map.Entry<String, AspectRecord> entry : state.aspects.entrySet()) {
+            if (!aspects.containsKey(entry.getKey())) {
+                obsoleteAspectPaths.add(entry.getValue().aspectPath);
+            }
+        }
+
+        for (String path : new ArrayList<>(state.classes.keySet())) {
+            if (null == state.classes.get(path).inputHash
+                    && isAspectClassFile(path, obsoleteAspectPaths)) {
+
+                Files.deleteIfExists(new File(classesDir, path).toPath());
+                Files.deleteIfExists(state.getWovenFile(path).toPath());
+                state.classes.remove(path);
+            }
+        }
+        for (String aspectPath : obsoleteAspectPaths) {
+            for (String path : listAspectClassFiles(aspectPath)) {
+                Files.deleteIfExists(new File(classesDir, path).toPath());
+            }
+        }
+        restoreAspectClasses();
+
+        // Weave.
+        stage(partitions, true);
+
+        if (!execute(createShards(partitions, index, classpath, options))) {
+
+            // Put back the unwoven classes and start over on the next run.
+            unstage(partitions);
+            state.clear();
+            state.save();
+            return;
+        }
+
+        // Record the woven classes.
+        for (int shardIndex = 0; shardIndex < partitions.size(); shardIndex++) {
+            File stagingDir = getStagingDir(shardIndex);
+            for (String path : partitions.get(shardIndex).keySet()) {
+                File wovenFile = new File(classesDir, path);
+                if (wovenFile.isFile()) {
+                    record(path, wovenFile, hash(new File(stagingDir, path)));
+                }
+            }
+        }
+
+        for (AspectRecord aspect : aspects.values()) {
+            if (compiledAspectPaths.contains(aspect.aspectPath)) {
+                for (String path : listAspectClassFiles(aspect.aspectPath)) {
+                    record(path, new File(classesDir, path), null);
+                }
+            }
+        }
+
+        state.aspects.clear();
+        state.aspects.putAll(aspects);
+        state.configuration = configuration;
+        state.save();
+    }
+
+    // Runs ajc for the shards, recording its wall time.
+    private boolean execute(List<Shard> shards) {
+
+        long startTime = System.nanoTime();
+        try {
+            return executor.execute(shards);
+        } finally {
+            report.weaveTime += System.nanoTime() - startTime;
+        }
+    }
+
+    // Split the classes to be woven, sorted by path, into shards.
+    private List<Map<String, File>> partition(Map<String, File> sources) {
+
+        List<Map<String, File>> partitions = new ArrayList<>();
+        Map<String, File> partition = null;
+
+        for (Map.Entry<String, File> entry : sources.entrySet()) {
+            if (null == partition || shardSize <= partition.size()) {
+                partition = new TreeMap<>();
+                partitions.add(partition);
+            }
+            partition.put(entry.getKey(), entry.getValue());
+        }
+
+        return partitions;
+    }
+
+    // Move the classes to be woven to the staging directory of their shard.
+    private void stage(List<Map<String, File>> partitions, boolean isCached) throws IOException {
+
+        delete(state.getStagingDir());
+
+        for (int shardIndex = 0; shardIndex < partitions.size(); shardIndex++) {
+
+            File stagingDir = getStagingDir(shardIndex);
+            if (!stagingDir.mkdirs()) {
+                throw new IOException("Unable to create directory " + stagingDir);
+            }
+
+            for (Map.Entry<String, File> entry : partitions.get(shardIndex).entrySet()) {
+                String path = entry.getKey();
+                File stagedFile = new File(stagingDir, path);
+                copy(entry.getValue(), stagedFile);
+                if (isCached) {
+                    copy(stagedFile, state.getUnwovenFile(path));
+                }
+                Files.deleteIfExists(new File(classesDir, path).toPath());
+            }
+        }
+    }
+
+    // Put back the staged classes, e.g. when weaving fails.
+    private void unstage(List<Map<String, File>> partitions) throws IOException {
+
+        for (int shardIndex = 0; shardIndex < partitions.size(); shardIndex++) {
+            File stagingDir = getStagingDir(shardIndex);
+            for (String path : partitions.get(shardIndex).keySet()) {
+                copy(new File(stagingDir, path), new File(classesDir, path));
+            }
+        }
+    }
+
+    private File getStagingDir(int shardIndex) {
+        return new File(state.getStagingDir(), String.valueOf(shardIndex));
+    }
+
+    private List<Shard> createShards(List<Map<String, File>> partitions,
+            AspectIndex index,
+            String classpath,
+            List<String> options) {
+
+        List<Shard> shards = new ArrayList<>();
+
+        for (int shardIndex = 0; shardIndex < partitions.size(); shardIndex++) {
+            Map<String, File> partition = partitions.get(shardIndex);
+
+            // Classes of other shards are resolved from their staging directory, as they may be
+            // written to the classes directory concurrently.
+            StringBuilder shardClasspath = new StringBuilder(classpath);
+            for (int otherIndex = 0; otherIndex < partitions.size(); otherIndex++) {
+                if (otherIndex != shardIndex) {
+                    shardClasspath.append(File.pathSeparator)
+                            .append(getStagingDir(otherIndex).getAbsolutePath());
+                }
+            }
+            shardClasspath.append(File.pathSeparator).append(classesDir.getAbsolutePath());
+
+            List<String> args = new ArrayList<>(options);
+            args.add("-inpath");
+            args.add(getStagingDir(shardIndex).getAbsolutePath());
+            args.add("-d");
+            args.add(classesDir.getAbsolutePath());
+            args.add("-classpath");
+            args.add(shardClasspath.toString());
+            for (AspectIndex.Entry entry : index.getEntries()) {
+                if (partition.containsKey(entry.getTargetPath())) {
+                    args.add(entry.getAspectSource().getAbsolutePath());
+                }
+            }
+
+            shards.add(new Shard(String.format("shard %d of %d", shardIndex + 1,
+                    partitions.size()), partition.size(), args));
+        }
+
+        return shards;
+    }
+
+    private void record(String path, File wovenFile, String inputHash) throws IOException {
+
+        ClassRecord record = new ClassRecord();
+        record.inputHash = inputHash;
+        record.outputHash = hash(wovenFile);
+        record.outputLength = wovenFile.length();
+        record.outputModified = wovenFile.lastModified();
+        state.classes.put(path, record);
+
+        copy(wovenFile, state.getWovenFile(path));
+    }
+
+    private void restore(String path) throws IOException {
+
+        File classFile = new File(classesDir, path);
+        copy(state.getWovenFile(path), classFile);
+
+        ClassRecord record = state.classes.get(path);
+        record.outputLength = classFile.length();
+        record.outputModified = classFile.lastModified();
+    }
+
+    // Restore compiled aspects that were deleted, e.g. by a full recompilation.
+    private void restoreAspectClasses() throws IOException {
+
+        for (Map.Entry<String, ClassRecord> entry : state.classes.entrySet()) {
+            if (null == entry.getValue().inputHash
+                    && !new File(classesDir, entry.getKey()).isFile()) {
+
+                restore(entry.getKey());
+            }
+        }
+    }
+
+    private static boolean isAspectClassFile(String path, Set<String> aspectPaths) {
+
+        for (String aspectPath : aspectPaths) {
+            if (path.equals(aspectPath + CLASS_EXTENSION)
+                    || (path.startsWith(aspectPath + "$") && path.endsWith(CLASS_EXTENSION))) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Lists the class files of the aspect and its nested classes.
+    private List<String> listAspectClassFiles(String aspectPath) {
+
+        int separatorIndex = aspectPath.lastIndexOf('/');
+        String packagePath = aspectPath.substring(0, separatorIndex + 1);
+        String aspectName = aspectPath.substring(separatorIndex + 1);
+
+        List<String> paths = new ArrayList<>();
+        String[] fileNames = new File(classesDir, packagePath).list();
+        if (null == fileNames) {
+            return paths;
+        }
+
+        for (String fileName : fileNames) {
+            if (fileName.equals(aspectName + CLASS_EXTENSION)
+                    || (fileName.startsWith(aspectName + "$")
+                    && fileName.endsWith(CLASS_EXTENSION))) {
+
+                paths.add(packagePath + fileName);
+            }
+        }
+
+        return paths;
+    }
+
+    private static String fingerprint(String classpath,
+            List<String> options,
+            Iterable<File> dependencies) {
+
+        StringBuilder buffer = new StringBuilder(classpath);
+        for (String option : options) {
+            buffer.append('\n').append(option);
+        }
+        for (File dependency : dependencies) {
+            buffer.append('\n').append(dependency.getAbsolutePath())
+                    .append(':').append(dependency.length())
+                    .append(':').append(dependency.lastModified());
+        }
+
+        MessageDigest digest = createDigest();
+        return toHex(digest.digest(buffer.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String hash(File file) throws IOException {
+
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[8192];
+
+        try (InputStream input = new FileInputStream(file)) {
+            int count;
+            while (-1 != (count = input.read(buffer))) {
+                digest.update(buffer, 0, count);
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException(exception);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+
+        StringBuilder buffer = new StringBuilder(bytes.length * 2);
+        for (byte value : bytes) {
+            buffer.append(Character.forDigit((value >> 4) & 0xf, 16))
+                    .append(Character.forDigit(value & 0xf, 16));
+        }
+
+        return buffer.toString();
+    }
+
+    private static void copy(File source, File destination) throws IOException {
+
+        File parent = destination.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        Files.copy(source.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void delete(File dir) throws IOException {
+
+        if (!dir.exists()) {
+            return;
+        }
+
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException exception)
+                    throws IOException {
+
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Executes the runs of ajc weaving the shards of the classes to be woven.
+     */
+    interface ShardExecutor {
+
+        /**
+         * Run ajc for each of the specified shards, possibly in parallel, and wait for all
+         * runs to complete.
+         *
+         * @param shards the shards to be woven.
+         *
+         * @return {@code true} if all runs completed without errors.
+         */
+        boolean execute(List<Shard> shards);
+    }
+
+    /**
+     * A subset of the classes to be woven by a single run of ajc.
+     */
+    static class Shard {
+
+        private final String name;
+        private final int classCount;
+        private final List<String> args;
+
+        Shard(String name, int classCount, List<String> args) {
+            this.name = name;
+            this.classCount = classCount;
+            this.args = Collections.unmodifiableList(args);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        int getClassCount() {
+            return classCount;
+        }
+
+        /**
+         * Get the command line arguments of the ajc run weaving this shard.
+         *
+         * @return the ajc command line arguments.
+         */
+        List<String> getArgs() {
+            return args;
+        }
+    }
+}
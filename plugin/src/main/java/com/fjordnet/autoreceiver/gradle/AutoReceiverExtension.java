@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import org.gradle.api.artifacts.Dependency;
+import org.gradle.api.artifacts.DependencySet;
+
+public class AutoReceiverExtension {
+
+    public static final String NAME = "autoReceiver";
+
+    /**
+     * Backend generating aspects, woven into the compiled classes by ajc.
+     */
+    public static final String BACKEND_ASPECTJ = "aspectj";
+
+    /**
+     * Backend generating plain Java binder classes, whose calls are injected into the compiled
+     * classes. It requires neither ajc nor the AspectJ runtime.
+     */
+    public static final String BACKEND_BINDER = "binder";
+
+    /**
+     * Default maximum number of classes processed by a single weaving worker.
+     */
+    public static final int DEFAULT_SHARD_SIZE = 100;
+
+    private final DependencySet dependencies;
+    private final Dependency aspectjRuntime;
+
+    private String backend = BACKEND_BINDER;
+    private boolean incrementalWeaving;
+    private boolean multiplexReceivers;
+    private boolean receiverMetrics;
+    private boolean buildReport;
+    private int shardSize = DEFAULT_SHARD_SIZE;
+
+    /**
+     * Create the extension.
+     *
+     * @param dependencies the dependencies of the project's compile configuration.
+     * @param aspectjRuntime the AspectJ runtime dependency, which is only added to the
+     * compile configuration when using the {@value #BACKEND_ASPECTJ} backend.
+     */
+    public AutoReceiverExtension(DependencySet dependencies, Dependency aspectjRuntime) {
+        this.dependencies = dependencies;
+        this.aspectjRuntime = aspectjRuntime;
+    }
+
+    /**
+     * Get the backend generating the code that registers and unregisters broadcast receivers.
+     *
+     * @return {@value #BACKEND_ASPECTJ} or {@value #BACKEND_BINDER}.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * Specifies the backend generating the code that registers and unregisters broadcast
+     * receivers. The default is {@value #BACKEND_BINDER}.
+     *
+     * @param backend {@value #BACKEND_BINDER} for binder classes whose methods are called from
+     * the registration and unregistration methods, or {@value #BACKEND_ASPECTJ} for aspects
+     * woven by ajc.
+     */
+    public void setBackend(String backend) {
+
+        if (!BACKEND_ASPECTJ.equals(backend) && !BACKEND_BINDER.equals(backend)) {
+            throw new IllegalArgumentException(String.format("Unknown %s backend: %s", NAME,
+                    backend));
+        }
+
+        this.backend = backend;
+
+        // Dependencies are resolved by the Android plugin before variants are configured,
+        // so the runtime dependency is updated as soon as the backend is specified.
+        if (isBinderBackend()) {
+            dependencies.remove(aspectjRuntime);
+        } else if (!dependencies.contains(aspectjRuntime)) {
+            dependencies.add(aspectjRuntime);
+        }
+    }
+
+    /**
+     * Query whether the binder backend is used.
+     *
+     * @return {@code true} if binder classes are generated instead of aspects.
+     */
+    public boolean isBinderBackend() {
+        return BACKEND_BINDER.equals(backend);
+    }
+
+    /**
+     * Query whether aspects are woven incrementally. Only applies to the
+     * {@value #BACKEND_ASPECTJ} backend.
+     *
+     * @return {@code true} if only the classes affected by changes since the previous build
+     * are woven, {@code false} if all classes are woven on every build.
+     */
+    public boolean isIncrementalWeaving() {
+        return incrementalWeaving;
+    }
+
+    /**
+     * Specifies whether aspects are woven incrementally. The default is {@code false}.
+     *
+     * @param incrementalWeaving {@code true} to only weave the classes affected by changes since
+     * the previous build.
+     */
+    public void setIncrementalWeaving(boolean incrementalWeaving) {
+        this.incrementalWeaving = incrementalWeaving;
+    }
+
+    /**
+     * Query whether annotated methods share broadcast receivers.
+     *
+     * @return {@code true} if all annotated methods of a class that are registered and
+     * unregistered in the same lifecycle methods are served by a single broadcast receiver.
+     */
+    public boolean isMultiplexReceivers() {
+        return multiplexReceivers;
+    }
+
+    /**
+     * Specifies whether annotated methods share broadcast receivers. When {@code true}, all
+     * annotated methods of a class that are registered and unregistered in the same lifecycle
+     * methods are served by a single broadcast receiver, whose intent filter merges their
+     * actions and which dispatches broadcasts to the methods by action. This saves a
+     * registration and an unregistration with the system per additional method.
+     * The default is {@code false}.
+     *
+     * @param multiplexReceivers {@code true} to share broadcast receivers between annotated
+     * methods.
+     */
+    public void setMultiplexReceivers(boolean multiplexReceivers) {
+        this.multiplexReceivers = multiplexReceivers;
+    }
+
+    /**
+     * Query whether generated broadcast receivers report their metrics.
+     *
+     * @return {@code true} if generated broadcast receivers report their metrics to
+     * {@code ReceiverMetrics}.
+     */
+    public boolean isReceiverMetrics() {
+        return receiverMetrics;
+    }
+
+    /**
+     * Specifies whether generated broadcast receivers report their metrics: the time spent
+     * delivering broadcasts, the time to their first broadcast, and the time spent registering
+     * and unregistering them. When {@code false}, no instrumentation is generated at all.
+     * The default is {@code false}.
+     *
+     * @param receiverMetrics {@code true} to report the metrics of generated broadcast
+     * receivers to {@code ReceiverMetrics}.
+     */
+    public void setReceiverMetrics(boolean receiverMetrics) {
+        this.receiverMetrics = receiverMetrics;
+    }
+
+    /**
+     * Query whether build reports are written.
+     *
+     * @return {@code true} if the annotation processor and the weave task write JSON reports of
+     * their timings and counts.
+     */
+    public boolean isBuildReport() {
+        return buildReport;
+    }
+
+    /**
+     * Specifies whether the annotation processor and the weave task of each variant write JSON
+     * reports of their timings and counts, under {@code build/reports/autoreceiver/<variant>}.
+     * The default is {@code false}.
+     *
+     * @param buildReport {@code true} to write build reports.
+     */
+    public void setBuildReport(boolean buildReport) {
+        this.buildReport = buildReport;
+    }
+
+    /**
+     * Get the maximum number of classes processed by a single weaving worker.
+     *
+     * @return the maximum number of classes processed by a single weaving worker.
+     */
+    public int getShardSize() {
+        return shardSize;
+    }
+
+    /**
+     * Specifies the maximum number of classes processed by a single weaving worker. Classes are
+     * split into shards of this size, which are woven in parallel. Smaller shards increase
+     * parallelism, at the cost of more ajc runs. The default is {@value #DEFAULT_SHARD_SIZE}.
+     *
+     * @param shardSize the maximum number of classes processed by a single weaving worker.
+     */
+    public void setShardSize(int shardSize) {
+
+        if (0 >= shardSize) {
+            throw new IllegalArgumentException(String.format("Invalid %s shard size: %d", NAME,
+                    shardSize));
+        }
+
+        this.shardSize = shardSize;
+    }
+}
@@ -21,34 +21,32 @@ import com.android.build.gradle.AppPlugin;
 import com.android.build.gradle.BaseExtension;
 import com.android.build.gradle.LibraryExtension;
 import com.android.build.gradle.LibraryPlugin;
-import com.android.build.gradle.api.AndroidSourceSet;
 import com.android.build.gradle.api.BaseVariant;
 
-import org.aspectj.bridge.IMessage;
-import org.aspectj.bridge.MessageHandler;
-import org.aspectj.tools.ajc.Main;
 import org.gradle.api.Action;
 import org.gradle.api.DomainObjectSet;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
+import org.gradle.api.artifacts.Dependency;
 import org.gradle.api.artifacts.dsl.DependencyHandler;
 import org.gradle.api.artifacts.dsl.RepositoryHandler;
-import org.gradle.api.logging.Logger;
 import org.gradle.api.plugins.PluginContainer;
+import org.gradle.api.specs.Spec;
 import org.gradle.api.tasks.compile.AbstractCompile;
 
 import java.io.File;
-import java.util.Iterator;
-
-import static org.aspectj.bridge.IMessage.DEBUG;
-import static org.aspectj.bridge.IMessage.INFO;
-import static org.aspectj.bridge.IMessage.WARNING;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Gradle plugin for AutoReceiver.
  * It adds all compile and apt dependencies.
- * It also runs ajc after Java compilation to weave aspects into the compiled code.
+ * It also adds a task per variant, following Java compilation, which injects calls to the
+ * generated binders or, with the AspectJ backend, runs ajc to weave aspects into the compiled
+ * code.
  */
 public class AutoReceiverPlugin implements Plugin<Project> {
 
@@ -58,6 +56,11 @@ public class AutoReceiverPlugin implements Plugin<Project> {
     private static final String APT = "annotationProcessor";
     private static final String COMPILE = "compile";
 
+    private static final String PROCESSOR_OPTION_BACKEND = "autoreceiver.backend";
+    private static final String PROCESSOR_OPTION_MULTIPLEX = "autoreceiver.multiplex";
+    private static final String PROCESSOR_OPTION_METRICS = "autoreceiver.metrics";
+    private static final String PROCESSOR_OPTION_REPORT = "autoreceiver.report";
+
     @Override
     public void apply(final Project project) {
 
@@ -79,9 +82,16 @@ public class AutoReceiverPlugin implements Plugin<Project> {
         DependencyHandler dependencies = project.getDependencies();
         dependencies.add(APT, String.format(libDependencyFormat, "annotation-processor"));
         dependencies.add(COMPILE, String.format(libDependencyFormat, "annotations"));
-        dependencies.add(COMPILE,
+        dependencies.add(COMPILE, String.format(libDependencyFormat, "runtime"));
+        // The AspectJ runtime is only added with the AspectJ backend.
+        Dependency aspectjRuntime = dependencies.create(
                 String.format("org.aspectj:aspectjrt:%s", ASPECTJ_RUNTIME_VERSION));
 
+        final AutoReceiverExtension extension = project.getExtensions().create(
+                AutoReceiverExtension.NAME, AutoReceiverExtension.class,
+                project.getConfigurations().getByName(COMPILE).getDependencies(),
+                aspectjRuntime);
+
         // Find variants.
         DomainObjectSet<? extends BaseVariant> variants;
         final BaseExtension android = (BaseExtension) project.getExtensions().getByName("android");
@@ -92,86 +102,132 @@ public class AutoReceiverPlugin implements Plugin<Project> {
             variants = ((LibraryExtension) android).getLibraryVariants();
         }
 
-        // Execute ajc (aspect weaving) following Java compilation.
+        // Inject binder calls or execute ajc (aspect weaving) following Java compilation.
         variants.all(new Action<BaseVariant>() {
 
             @Override
             public void execute(BaseVariant variant) {
-                AjcAction ajcAction = new AjcAction(variant.getJavaCompile(), android,
-                        project.getLogger());
 
-                variant.getJavaCompiler().doLast(ajcAction);
+                List<String> compilerArgs =
+                        variant.getJavaCompile().getOptions().getCompilerArgs();
+                compilerArgs.add(String.format("-A%s=%s", PROCESSOR_OPTION_BACKEND,
+                        extension.getBackend()));
+                compilerArgs.add(String.format("-A%s=%s", PROCESSOR_OPTION_MULTIPLEX,
+                        extension.isMultiplexReceivers()));
+                compilerArgs.add(String.format("-A%s=%s", PROCESSOR_OPTION_METRICS,
+                        extension.isReceiverMetrics()));
+                if (extension.isBuildReport()) {
+                    compilerArgs.add(String.format("-A%s=%s", PROCESSOR_OPTION_REPORT,
+                            getProcessorReportPath(variant, project)));
+                }
+
+                createWeaveTask(project, android, extension, variant);
             }
         });
     }
 
-    private static <ItemType> String join(Iterable<ItemType> iterable) {
+    private static void createWeaveTask(Project project,
+            BaseExtension android,
+            AutoReceiverExtension extension,
+            BaseVariant variant) {
+
+        AbstractCompile javaCompile = variant.getJavaCompile();
+        String variantName = capitalize(variant.getName());
+        File buildDir = new File(project.getBuildDir(),
+                "intermediates/autoreceiver/" + variant.getDirName());
+
+        // The Java compiler writes to a directory of its own, from which the weave task writes
+        // to the directory read by the Android plugin.
+        File outputDir = javaCompile.getDestinationDir();
+        File classesDir = new File(buildDir, "classes");
+        javaCompile.setDestinationDir(classesDir);
+
+        final WeaveTask weaveTask = project.getTasks().create(
+                String.format("weave%sReceivers", variantName), WeaveTask.class);
+
+        weaveTask.setDescription(String.format("Weaves broadcast receivers into the %s classes.",
+                variant.getName()));
+        weaveTask.setClassesDir(classesDir);
+        weaveTask.setGeneratedSourceDir(getGeneratedSourceDir(variant, project));
+        weaveTask.setClasspath(javaCompile.getClasspath());
+        weaveTask.setBootClasspath(project.files(android.getBootClasspath()));
+        weaveTask.setBackend(extension.getBackend());
+        weaveTask.setSourceCompatibility(
+                android.getCompileOptions().getSourceCompatibility().toString());
+        weaveTask.setIncrementalWeaving(extension.isIncrementalWeaving());
+        weaveTask.setStateDir(new File(buildDir, "state"));
+        weaveTask.setShardSize(extension.getShardSize());
+        weaveTask.setOutputDir(outputDir);
+        if (extension.isBuildReport()) {
+            weaveTask.setReportFile(new File(getReportDir(variant, project), "weave.json"));
+        }
 
-        Iterator<ItemType> iter = iterable.iterator();
-        StringBuilder buffer = new StringBuilder();
+        weaveTask.dependsOn(javaCompile);
+        javaCompile.finalizedBy(weaveTask);
 
-        if (iter.hasNext()) {
-            buffer.append(iter.next());
-            while (iter.hasNext()) {
-                buffer.append(File.pathSeparator).append(iter.next());
+        // Tasks reading the compiled classes of the variant must wait for them to be woven.
+        final String transformSuffix = "For" + variantName;
+        final Set<String> testCompileNames = new HashSet<>(Arrays.asList(
+                String.format("compile%sUnitTestJavaWithJavac", variantName),
+                String.format("compile%sAndroidTestJavaWithJavac", variantName)));
+
+        project.getTasks().matching(new Spec<Task>() {
+
+            @Override
+            public boolean isSatisfiedBy(Task task) {
+                String name = task.getName();
+                return (name.startsWith("transform") && name.endsWith(transformSuffix))
+                        || testCompileNames.contains(name);
             }
-        }
 
-        return buffer.toString();
+        }).all(new Action<Task>() {
+
+            @Override
+            public void execute(Task task) {
+                task.dependsOn(weaveTask);
+            }
+        });
     }
 
-    private static class AjcAction implements Action<Task> {
+    private static File getReportDir(BaseVariant variant, Project project) {
+        return new File(project.getBuildDir(), "reports/autoreceiver/" + variant.getDirName());
+    }
 
-        private AbstractCompile compiler;
-        private BaseExtension android;
-        private Logger logger;
+    // Compiler arguments are inputs of the compile task: the report is specified relative to the
+    // directory of generated sources, against which the processor resolves it, so that the
+    // task's cache key doesn't depend on the location of the project.
+    private static String getProcessorReportPath(BaseVariant variant, Project project) {
 
-        public AjcAction(AbstractCompile compiler, BaseExtension android, Logger logger) {
-            this.compiler = compiler;
-            this.android = android;
-            this.logger = logger;
-        }
+        File reportFile = new File(getReportDir(variant, project), "processor.json");
+        return getGeneratedSourceDir(variant, project).toPath()
+                .relativize(reportFile.toPath())
+                .toString()
+                .replace(File.separatorChar, '/');
+    }
 
-        @Override
-        public void execute(Task task) {
-            AndroidSourceSet mainSourceSet = android.getSourceSets().findByName("main");
-            String sourceDirs = join(mainSourceSet.getJava().getSrcDirs());
-
-            String buildDir = task.getProject().getBuildDir().toString();
-
-            String destinationDir = compiler.getDestinationDir().toString();
-            String inpath = destinationDir;
-            String classpath = compiler.getClasspath().getAsPath();
-            String bootClasspath = join(android.getBootClasspath());
-
-            String[] args = {
-                    "-showWeaveInfo",
-                    "-verbose",
-                    "-" + android.getCompileOptions().getSourceCompatibility(),
-                    "-sourceroots", sourceDirs + File.pathSeparator + buildDir,
-                    "-inpath", inpath,
-                    "-aspectpath", classpath,
-                    "-d", destinationDir,
-                    "-classpath", classpath,
-                    "-bootclasspath", bootClasspath
-            };
-
-            MessageHandler handler = new MessageHandler(true);
-
-            new Main().run(args, handler);
-
-            for (IMessage message : handler.getMessages(null, true)) {
-                IMessage.Kind kind = message.getKind();
-                if (WARNING.equals(kind)) {
-                    logger.warn(message.getMessage(), message.getThrown());
-                } else if (INFO.equals(kind)) {
-                    logger.info(message.getMessage(), message.getThrown());
-                } else if (DEBUG.equals(kind)) {
-                    logger.debug(message.getMessage(), message.getThrown());
-                } else {
-                    logger.error(message.getMessage(), message.getThrown());
-                }
-            }
+    private static String capitalize(String name) {
+        return name.isEmpty() ? name : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Get the directory to which the annotation processor writes generated sources for the
+     * specified variant.
+     *
+     * @param variant the variant whose generated source directory is to be retrieved.
+     * @param project the project to which the variant belongs.
+     *
+     * @return the directory to which the annotation processor writes generated sources.
+     */
+    static File getGeneratedSourceDir(BaseVariant variant, Project project) {
+
+        // The generated source directory is passed to javac by the Android plugin.
+        List<String> compilerArgs = variant.getJavaCompile().getOptions().getCompilerArgs();
+
+        int index = compilerArgs.indexOf("-s");
+        if (0 <= index && index + 1 < compilerArgs.size()) {
+            return new File(compilerArgs.get(index + 1));
         }
+
+        return new File(project.getBuildDir(), "generated/source/apt/" + variant.getDirName());
     }
 }
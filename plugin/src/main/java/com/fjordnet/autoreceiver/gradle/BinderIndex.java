@@ -0,0 +1,248 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Index of the binders generated by the annotation processor for a variant.
+ * The processor writes one hooks file next to each generated binder, naming the binder, the
+ * class it binds, and the methods of that class from which the binder is to be called.
+ */
+class BinderIndex {
+
+    private static final String HOOKS_EXTENSION = ".hooks";
+
+    private static final String KEY_BINDER = "binder";
+    private static final String KEY_TARGET = "target";
+    private static final String KEY_CONTEXT = "context";
+    private static final String KEY_HOOKS = "hooks";
+    private static final String KEY_HOOK_DESCRIPTOR = "hook.%s.descriptor";
+    private static final String KEY_HOOK_MODIFIERS = "hook.%s.modifiers";
+
+    private final List<Entry> entries;
+
+    private BinderIndex(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Read the hooks files from the specified generated source directory.
+     *
+     * @param generatedSourceDir the directory to which the annotation processor writes
+     * generated sources.
+     *
+     * @return the index of the binders found in the specified directory, which is empty if
+     * the directory doesn't exist.
+     * @throws IOException if a hooks file can't be read or is malformed.
+     */
+    static BinderIndex read(File generatedSourceDir) throws IOException {
+
+        List<Entry> entries = new ArrayList<>();
+        read(generatedSourceDir, entries);
+
+        return new BinderIndex(entries);
+    }
+
+    private static void read(File dir, List<Entry> entries) throws IOException {
+
+        File[] files = dir.listFiles();
+        if (null == files) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                read(file, entries);
+            } else if (file.getName().endsWith(HOOKS_EXTENSION)) {
+                entries.add(readEntry(file));
+            }
+        }
+    }
+
+    private static Entry readEntry(File hooksFile) throws IOException {
+
+        Properties properties = new Properties();
+        try (InputStream input = new FileInputStream(hooksFile)) {
+            properties.load(input);
+        }
+
+        String binder = properties.getProperty(KEY_BINDER);
+        String target = properties.getProperty(KEY_TARGET);
+        String hookNames = properties.getProperty(KEY_HOOKS);
+        if (null == binder || null == target || null == hookNames) {
+            throw new IOException("Malformed binder hooks " + hooksFile);
+        }
+
+        List<Hook> hooks = new ArrayList<>();
+        for (String name : hookNames.split(",")) {
+            if (name.isEmpty()) {
+                continue;
+            }
+
+            String descriptor = properties.getProperty(String.format(KEY_HOOK_DESCRIPTOR, name));
+            String modifiers = properties.getProperty(String.format(KEY_HOOK_MODIFIERS, name));
+            if (null == descriptor || null == modifiers) {
+                throw new IOException("Malformed binder hooks " + hooksFile);
+            }
+
+            hooks.add(new Hook(name, descriptor, modifiers.split(" ")));
+        }
+
+        return new Entry(binder.replace('.', '/'), target.replace('.', '/'),
+                Boolean.parseBoolean(properties.getProperty(KEY_CONTEXT)), hooks);
+    }
+
+    /**
+     * Query whether the index is empty, i.e. no binders were generated.
+     *
+     * @return {@code true} if no binders were generated.
+     */
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Get the entries of this index.
+     *
+     * @return the entries of this index, one per generated binder.
+     */
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Index entry of a single generated binder.
+     * Entries are serializable so that they can be handed to workers.
+     */
+    static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String binderName;
+        private final String targetName;
+        private final boolean hasContext;
+        private final List<Hook> hooks;
+
+        private Entry(String binderName, String targetName, boolean hasContext, List<Hook> hooks) {
+            this.binderName = binderName;
+            this.targetName = targetName;
+            this.hasContext = hasContext;
+            this.hooks = Collections.unmodifiableList(hooks);
+        }
+
+        /**
+         * Get the internal name of the binder, e.g. {@code com/example/Foo_ReceiverBinder}.
+         *
+         * @return the internal name of the binder.
+         */
+        String getBinderName() {
+            return binderName;
+        }
+
+        /**
+         * Get the internal name of the class bound by the binder, e.g. {@code com/example/Foo}.
+         *
+         * @return the internal name of the class bound by the binder.
+         */
+        String getTargetName() {
+            return targetName;
+        }
+
+        /**
+         * Get the path of the class file bound by the binder, relative to the classes directory.
+         *
+         * @return the path of the class file bound by the binder.
+         */
+        String getTargetPath() {
+            return targetName + ".class";
+        }
+
+        /**
+         * Query whether the bound class has access to a context, in which case the binder's
+         * methods can be called with the target instance only.
+         *
+         * @return {@code true} if the bound class has access to a context.
+         */
+        boolean hasContext() {
+            return hasContext;
+        }
+
+        /**
+         * Get the methods of the bound class from which the binder is to be called.
+         *
+         * @return the methods of the bound class from which the binder is to be called.
+         */
+        List<Hook> getHooks() {
+            return hooks;
+        }
+    }
+
+    /**
+     * Method of a bound class from which the binder's method of the same name is to be called.
+     */
+    static class Hook implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final String descriptor;
+        private final List<String> modifiers;
+
+        private Hook(String name, String descriptor, String[] modifiers) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.modifiers = Collections.unmodifiableList(Arrays.asList(modifiers));
+        }
+
+        /**
+         * Get the name of the method.
+         *
+         * @return the name of the method.
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Get the JVM descriptor of the method, e.g. {@code ()V}.
+         *
+         * @return the JVM descriptor of the method.
+         */
+        String getDescriptor() {
+            return descriptor;
+        }
+
+        /**
+         * Get the Java modifiers of the method, e.g. {@code protected}.
+         *
+         * @return the Java modifiers of the method.
+         */
+        List<String> getModifiers() {
+            return modifiers;
+        }
+    }
+}
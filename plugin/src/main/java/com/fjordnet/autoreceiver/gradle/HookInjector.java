@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import org.gradle.api.GradleException;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASM5;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.RETURN;
+
+/**
+ * <p>
+ * Injects calls to generated binders into the classes they bind, so that receivers are
+ * registered and unregistered without weaving aspects.
+ * </p><p>
+ * A call to the binder's method of the same name is injected before each return of the bound
+ * class's registration and unregistration methods. If the bound class inherits such a method
+ * rather than declaring it, an override calling the super method and then the binder is added.
+ * Only the class files listed in the {@link BinderIndex} are read and rewritten, each
+ * independently of the others.
+ * </p>
+ */
+class HookInjector {
+
+    private final File classesDir;
+
+    /**
+     * Create an injector for the classes in the specified directory.
+     *
+     * @param classesDir the directory containing the compiled classes, which are rewritten in
+     * place.
+     */
+    HookInjector(File classesDir) {
+        this.classesDir = classesDir;
+    }
+
+    /**
+     * Inject the calls to the specified binder into the class it binds.
+     *
+     * @param entry the index entry of the binder.
+     *
+     * @return {@code true} if the bound class was rewritten, {@code false} if it doesn't exist or
+     * already calls the binder, e.g. because it wasn't recompiled since the previous build.
+     * @throws IOException if the class file can't be read or written.
+     */
+    boolean inject(BinderIndex.Entry entry) throws IOException {
+
+        File classFile = new File(classesDir, entry.getTargetPath());
+        if (!classFile.isFile()) {
+            return false;
+        }
+
+        ClassReader reader = new ClassReader(Files.readAllBytes(classFile.toPath()));
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        HookClassVisitor visitor = new HookClassVisitor(writer, entry);
+
+        reader.accept(visitor, 0);
+
+        if (visitor.isInjected) {
+            return false;
+        }
+
+        Files.write(classFile.toPath(), writer.toByteArray());
+        return true;
+    }
+
+    // Calls the binder's method of the specified name with the target instance.
+    private static void visitBinderCall(MethodVisitor method,
+            BinderIndex.Entry entry,
+            String name) {
+
+        method.visitVarInsn(ALOAD, 0);
+        method.visitMethodInsn(INVOKESTATIC, entry.getBinderName(), name,
+                Type.getMethodDescriptor(Type.VOID_TYPE,
+                        Type.getObjectType(entry.getTargetName())),
+                false);
+    }
+
+    private static class HookClassVisitor extends ClassVisitor {
+
+        private final BinderIndex.Entry entry;
+        private final Map<String, BinderIndex.Hook> undeclaredHooks = new LinkedHashMap<>();
+
+        private String superName;
+        private boolean isInjected;
+
+        HookClassVisitor(ClassVisitor classVisitor, BinderIndex.Entry entry) {
+            super(ASM5, classVisitor);
+
+            this.entry = entry;
+            for (BinderIndex.Hook hook : entry.getHooks()) {
+                undeclaredHooks.put(hook.getName() + hook.getDescriptor(), hook);
+            }
+        }
+
+        @Override
+        public void visit(int version,
+                int access,
+                String name,
+                String signature,
+                String superName,
+                String[] interfaces) {
+
+            this.superName = superName;
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access,
+                String name,
+                String descriptor,
+                String signature,
+                String[] exceptions) {
+
+            MethodVisitor method = super.visitMethod(access, name, descriptor, signature,
+                    exceptions);
+
+            BinderIndex.Hook hook = undeclaredHooks.remove(name + descriptor);
+            if (null == hook) {
+                return method;
+            }
+
+            if (0 != (access & (ACC_STATIC | ACC_ABSTRACT))) {
+                throw new GradleException(String.format("Unable to call %s.%s from %s.%s: "
+                                + "the method cannot be static or abstract",
+                        entry.getBinderName(), name, entry.getTargetName(), name));
+            }
+
+            return new HookMethodVisitor(method, name);
+        }
+
+        @Override
+        public void visitEnd() {
+
+            // Override inherited methods.
+            for (BinderIndex.Hook hook : undeclaredHooks.values()) {
+                visitOverride(hook);
+            }
+
+            super.visitEnd();
+        }
+
+        private void visitOverride(BinderIndex.Hook hook) {
+
+            int access;
+            if (hook.getModifiers().contains("public")) {
+                access = ACC_PUBLIC;
+            } else if (hook.getModifiers().contains("protected")) {
+                access = ACC_PROTECTED;
+            } else if (hook.getModifiers().contains("private")
+                    || hook.getModifiers().contains("static")
+                    || hook.getModifiers().contains("final")) {
+
+                throw new GradleException(String.format("Unable to call %s.%s from %s: "
+                                + "the inherited method %s cannot be overridden",
+                        entry.getBinderName(), hook.getName(), entry.getTargetName(),
+                        hook.getName()));
+            } else {
+                access = 0;
+            }
+
+            String descriptor = hook.getDescriptor();
+            MethodVisitor method = super.visitMethod(access, hook.getName(), descriptor, null,
+                    null);
+
+            method.visitCode();
+
+            // Call super.
+            method.visitVarInsn(ALOAD, 0);
+            int local = 1;
+            for (Type argumentType : Type.getArgumentTypes(descriptor)) {
+                method.visitVarInsn(argumentType.getOpcode(ILOAD), local);
+                local += argumentType.getSize();
+            }
+            method.visitMethodInsn(INVOKESPECIAL, superName, hook.getName(), descriptor, false);
+
+            visitBinderCall(method, entry, hook.getName());
+
+            // Return result, if applicable.
+            method.visitInsn(Type.getReturnType(descriptor).getOpcode(IRETURN));
+
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+
+        private class HookMethodVisitor extends MethodVisitor {
+
+            private final String name;
+
+            HookMethodVisitor(MethodVisitor methodVisitor, String name) {
+                super(ASM5, methodVisitor);
+                this.name = name;
+            }
+
+            @Override
+            public void visitInsn(int opcode) {
+
+                // Call the binder upon returning normally, before the result is returned.
+                if (IRETURN <= opcode && RETURN >= opcode) {
+                    visitBinderCall(mv, entry, name);
+                }
+
+                super.visitInsn(opcode);
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode,
+                    String owner,
+                    String name,
+                    String descriptor,
+                    boolean isInterface) {
+
+                if (entry.getBinderName().equals(owner)) {
+                    isInjected = true;
+                }
+
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+            }
+        }
+    }
+}
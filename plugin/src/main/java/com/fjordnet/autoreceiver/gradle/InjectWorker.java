@@ -0,0 +1,107 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.inject.Inject;
+
+/**
+ * Worker injecting binder calls into a single shard of the bound classes.
+ * Classes are rewritten independently of each other, so workers can share a class loader.
+ * Workers can't return values: the number of classes into which calls were injected is written
+ * to a result file instead, read by the task once all workers completed.
+ */
+public class InjectWorker implements Runnable {
+
+    private static final Logger LOGGER = Logging.getLogger(InjectWorker.class);
+
+    private final String shardName;
+    private final File classesDir;
+    private final List<BinderIndex.Entry> entries;
+    private final File resultFile;
+
+    /**
+     * Create a worker for the specified shard.
+     *
+     * @param shardName the name of the shard, used for reporting.
+     * @param classesDir the directory containing the classes to be rewritten.
+     * @param entries the index entries of the binders whose calls are to be injected.
+     * @param resultFile the file to which the number of classes into which calls were injected
+     * is written.
+     */
+    @Inject
+    public InjectWorker(String shardName,
+            File classesDir,
+            List<BinderIndex.Entry> entries,
+            File resultFile) {
+
+        this.shardName = shardName;
+        this.classesDir = classesDir;
+        this.entries = entries;
+        this.resultFile = resultFile;
+    }
+
+    /**
+     * Read the number of classes into which a worker injected calls.
+     *
+     * @param resultFile the result file of the worker.
+     *
+     * @return the number of classes into which calls were injected.
+     * @throws IOException if the result file can't be read.
+     */
+    static int readInjectedCount(File resultFile) throws IOException {
+        return Integer.parseInt(
+                new String(Files.readAllBytes(resultFile.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void run() {
+
+        long startTime = System.nanoTime();
+        HookInjector injector = new HookInjector(classesDir);
+        int injectedCount = 0;
+
+        try {
+            for (BinderIndex.Entry entry : entries) {
+                // Classes that weren't copied already call their binder.
+                if (injector.inject(entry)) {
+                    injectedCount++;
+                }
+            }
+
+            Files.write(resultFile.toPath(),
+                    String.valueOf(injectedCount).getBytes(StandardCharsets.UTF_8));
+
+        } catch (IOException exception) {
+            throw new GradleException("Unable to inject binder calls into " + classesDir,
+                    exception);
+        }
+
+        LOGGER.info("AutoReceiver: injected binder calls into {} of {} classes of {} in {} ms",
+                injectedCount, entries.size(), shardName,
+                (System.nanoTime() - startTime) / 1000000);
+    }
+}
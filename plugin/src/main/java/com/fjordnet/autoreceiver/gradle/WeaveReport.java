@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * <p>
+ * Timings and counts of a single run of {@link WeaveTask}, written as a JSON report.
+ * Durations are measured with {@link System#nanoTime()} and reported in milliseconds.
+ * </p><p>
+ * Woven classes are the classes passed to ajc or, with the binder backend, the classes into
+ * which binder calls were injected, and the weaving time is the wall time of all shards.
+ * Restored classes are classes rewritten by the Java compiler with unchanged content, whose
+ * woven version was restored without running ajc or, with the binder backend, the classes left
+ * as is because they already call their binder.
+ * </p>
+ */
+class WeaveReport {
+
+    private final String backend;
+
+    boolean isIncremental;
+    boolean isFullWeave;
+    int copiedCount;
+    int removedCount;
+    int targetCount;
+    int wovenCount;
+    int restoredCount;
+    int shardCount;
+
+    long copyTime;
+    long weaveTime;
+    long totalTime;
+
+    /**
+     * Create an empty report.
+     *
+     * @param backend the backend of the woven code.
+     */
+    WeaveReport(String backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Write the report to the specified file, as a JSON object.
+     *
+     * @param file the file to which the report is written. Its parent directories are created
+     * as needed.
+     *
+     * @throws IOException if the report can't be written.
+     */
+    void write(File file) throws IOException {
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+
+            writer.write(String.format(Locale.ROOT, "{\n"
+                            + "  \"backend\": \"%1$s\",\n"
+                            + "  \"incremental\": %2$b,\n"
+                            + "  \"fullWeave\": %3$b,\n"
+                            + "  \"classesCopied\": %4$d,\n"
+                            + "  \"classesRemoved\": %5$d,\n"
+                            + "  \"targetClasses\": %6$d,\n"
+                            + "  \"classesWoven\": %7$d,\n"
+                            + "  \"classesRestored\": %8$d,\n"
+                            + "  \"shards\": %9$d,\n"
+                            + "  \"timings\": {\n"
+                            + "    \"copyMs\": %10$.3f,\n"
+                            + "    \"weaveMs\": %11$.3f,\n"
+                            + "    \"totalMs\": %12$.3f\n"
+                            + "  }\n"
+                            + "}\n",
+                    backend,
+                    isIncremental,
+                    isFullWeave,
+                    copiedCount,
+                    removedCount,
+                    targetCount,
+                    wovenCount,
+                    restoredCount,
+                    shardCount,
+                    toMillis(copyTime),
+                    toMillis(weaveTime),
+                    toMillis(totalTime)));
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+}
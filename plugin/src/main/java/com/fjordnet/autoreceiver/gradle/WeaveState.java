@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * State of the woven classes of a single variant, retained between builds so that
+ * {@link AspectWeaver} only weaves the classes affected by a change.
+ * The state is kept in memory for the lifetime of the build process (i.e. the Gradle daemon)
+ * and persisted to disk for the first build of a new process.
+ */
+class WeaveState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String STATE_FILE_NAME = "weave-state.bin";
+
+    // States of all variants built by this process, keyed by state directory.
+    private static final Map<File, WeaveState> STATES = new ConcurrentHashMap<>();
+
+    /**
+     * Hash of everything that isn't tracked per file, but affects the result of weaving
+     * (e.g. classpath and compiler options). All classes are woven when it changes.
+     */
+    String configuration;
+
+    /**
+     * Records of the classes targeted by aspects and of the compiled aspects, keyed by path
+     * relative to the classes directory.
+     */
+    final Map<String, ClassRecord> classes = new HashMap<>();
+
+    /**
+     * Generated aspect records, keyed by absolute path of the aspect source.
+     */
+    final Map<String, AspectRecord> aspects = new HashMap<>();
+
+    private transient File stateDir;
+
+    private WeaveState(File stateDir) {
+        this.stateDir = stateDir;
+    }
+
+    /**
+     * Retrieve the state stored in the specified directory. The in-memory state is returned
+     * if available, otherwise it is read from disk. An empty state is returned if neither is
+     * available or if the persisted state can't be read.
+     *
+     * @param stateDir the directory containing the state and the cached class files.
+     *
+     * @return the state stored in the specified directory.
+     */
+    static WeaveState load(File stateDir) {
+
+        WeaveState state = STATES.get(stateDir);
+        if (null != state) {
+            return state;
+        }
+
+        File stateFile = new File(stateDir, STATE_FILE_NAME);
+        if (stateFile.isFile()) {
+            try (ObjectInputStream input = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(stateFile)))) {
+
+                state = (WeaveState) input.readObject();
+                state.stateDir = stateDir;
+
+            } catch (IOException | ClassNotFoundException | ClassCastException exception) {
+                state = null;
+            }
+        }
+
+        if (null == state) {
+            state = new WeaveState(stateDir);
+        }
+
+        STATES.put(stateDir, state);
+        return state;
+    }
+
+    /**
+     * Persist this state to disk.
+     *
+     * @throws IOException if the state can't be written.
+     */
+    void save() throws IOException {
+
+        if (!stateDir.isDirectory() && !stateDir.mkdirs()) {
+            throw new IOException("Unable to create directory " + stateDir);
+        }
+
+        try (ObjectOutputStream output = new ObjectOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(stateDir, STATE_FILE_NAME))))) {
+
+            output.writeObject(this);
+        }
+    }
+
+    /**
+     * Discard all records, e.g. after a failed weave. The cached class files are kept,
+     * but will no longer be used.
+     */
+    void clear() {
+        configuration = null;
+        classes.clear();
+        aspects.clear();
+    }
+
+    /**
+     * Get the file in which the unwoven version of the specified class is cached.
+     *
+     * @param path the path of the class file, relative to the classes directory.
+     *
+     * @return the file in which the unwoven version of the class is cached.
+     */
+    File getUnwovenFile(String path) {
+        return new File(new File(stateDir, "unwoven"), path);
+    }
+
+    /**
+     * Get the file in which the woven version of the specified class is cached.
+     *
+     * @param path the path of the class file, relative to the classes directory.
+     *
+     * @return the file in which the woven version of the class is cached.
+     */
+    File getWovenFile(String path) {
+        return new File(new File(stateDir, "woven"), path);
+    }
+
+    /**
+     * Get the directory in which the classes to be woven are staged.
+     *
+     * @return the directory in which the classes to be woven are staged.
+     */
+    File getStagingDir() {
+        return new File(stateDir, "staging");
+    }
+
+    /**
+     * Record of a single aspect source file.
+     */
+    static class AspectRecord implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Hash of the aspect source file.
+         */
+        String hash;
+
+        /**
+         * Path of the aspect's class, without extension, relative to the classes directory.
+         * Nested classes of the aspect share this prefix.
+         */
+        String aspectPath;
+
+        /**
+         * Path of the class file targeted by the aspect, relative to the classes directory.
+         */
+        String targetPath;
+    }
+
+    /**
+     * Record of a single class file, before and after weaving.
+     */
+    static class ClassRecord implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Hash of the class file produced by the Java compiler, or {@code null} if the class
+         * was produced by ajc (e.g. a compiled aspect).
+         */
+        String inputHash;
+
+        /**
+         * Hash of the woven class file.
+         */
+        String outputHash;
+
+        /**
+         * Length and modification time of the woven class file when it was last written,
+         * used to skip hashing files that haven't been touched since.
+         */
+        long outputLength;
+        long outputModified;
+    }
+}
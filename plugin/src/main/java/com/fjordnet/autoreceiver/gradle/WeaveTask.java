@@ -0,0 +1,557 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.gradle;
+
+import org.gradle.api.Action;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.ConfigurableFileTree;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputDirectory;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.api.tasks.incremental.IncrementalTaskInputs;
+import org.gradle.api.tasks.incremental.InputFileDetails;
+import org.gradle.workers.ForkMode;
+import org.gradle.workers.WorkerConfiguration;
+import org.gradle.workers.WorkerExecutionException;
+import org.gradle.workers.WorkerExecutor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import static org.gradle.api.tasks.PathSensitivity.RELATIVE;
+
+/**
+ * <p>
+ * Weaves the code generated by the annotation processor into the output of a variant's Java
+ * compilation: calls to binders are injected or, with the AspectJ backend, aspects are woven.
+ * </p><p>
+ * The Java compiler writes to {@link #getClassesDir()}, and woven classes are written to
+ * {@link #getOutputDir()}, the directory from which the Android plugin reads compiled classes.
+ * Since inputs and outputs are declared and don't overlap, the task is skipped when up to date
+ * and its output can be pulled from the build cache. When only some classes changed, only these
+ * are copied to the output directory.
+ * </p><p>
+ * Classes are split into shards of {@link #getShardSize()} classes, which are processed in
+ * parallel by workers. Binder calls are injected in the build process, while each ajc run is
+ * executed in a worker process of its own. Per-shard timings are logged at info level.
+ * </p><p>
+ * If a {@link #getReportFile() report file} is specified, the timings and counts of each run
+ * are written to it as JSON.
+ * </p>
+ */
+@CacheableTask
+public class WeaveTask extends DefaultTask {
+
+    private final WorkerExecutor workerExecutor;
+
+    private File classesDir;
+    private FileCollection generatedFiles;
+    private FileCollection classpath;
+    private FileCollection bootClasspath;
+    private String backend;
+    private String sourceCompatibility;
+    private boolean incrementalWeaving;
+    private File generatedSourceDir;
+    private File stateDir;
+    private int shardSize = AutoReceiverExtension.DEFAULT_SHARD_SIZE;
+    private File outputDir;
+    private File reportFile;
+
+    @Inject
+    public WeaveTask(WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    /**
+     * Get the directory containing the unwoven output of the Java compiler.
+     *
+     * @return the directory containing the unwoven classes.
+     */
+    @InputDirectory
+    @PathSensitive(RELATIVE)
+    public File getClassesDir() {
+        return classesDir;
+    }
+
+    public void setClassesDir(File classesDir) {
+        this.classesDir = classesDir;
+    }
+
+    /**
+     * Get the files generated by the annotation processor that are used for weaving, i.e. the
+     * aspect sources and the aspect and binder indices.
+     *
+     * @return the files generated by the annotation processor that are used for weaving.
+     */
+    @InputFiles
+    @PathSensitive(RELATIVE)
+    public FileCollection getGeneratedFiles() {
+        return generatedFiles;
+    }
+
+    /**
+     * Get the classpath used to resolve the types referenced by the woven classes.
+     *
+     * @return the compile classpath of the variant.
+     */
+    @Classpath
+    public FileCollection getClasspath() {
+        return classpath;
+    }
+
+    public void setClasspath(FileCollection classpath) {
+        this.classpath = classpath;
+    }
+
+    /**
+     * Get the boot classpath used to resolve the types referenced by the woven classes.
+     *
+     * @return the boot classpath of the variant, i.e. the Android platform.
+     */
+    @Classpath
+    public FileCollection getBootClasspath() {
+        return bootClasspath;
+    }
+
+    public void setBootClasspath(FileCollection bootClasspath) {
+        this.bootClasspath = bootClasspath;
+    }
+
+    /**
+     * Get the backend that generated the code to be woven.
+     *
+     * @return {@value AutoReceiverExtension#BACKEND_BINDER} or
+     * {@value AutoReceiverExtension#BACKEND_ASPECTJ}.
+     */
+    @Input
+    public String getBackend() {
+        return backend;
+    }
+
+    public void setBackend(String backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Get the Java source level of the woven classes.
+     *
+     * @return the Java source level, e.g. {@code 1.7}.
+     */
+    @Input
+    public String getSourceCompatibility() {
+        return sourceCompatibility;
+    }
+
+    public void setSourceCompatibility(String sourceCompatibility) {
+        this.sourceCompatibility = sourceCompatibility;
+    }
+
+    /**
+     * Query whether aspects are woven incrementally. This doesn't affect the woven classes.
+     *
+     * @return {@code true} if only the classes affected by changes since the previous build
+     * are woven.
+     */
+    @Internal
+    public boolean isIncrementalWeaving() {
+        return incrementalWeaving;
+    }
+
+    public void setIncrementalWeaving(boolean incrementalWeaving) {
+        this.incrementalWeaving = incrementalWeaving;
+    }
+
+    /**
+     * Get the directory to which the annotation processor writes generated sources.
+     *
+     * @return the directory to which the annotation processor writes generated sources.
+     */
+    @Internal
+    public File getGeneratedSourceDir() {
+        return generatedSourceDir;
+    }
+
+    /**
+     * Specifies the directory to which the annotation processor writes generated sources,
+     * from which the files used for weaving are taken.
+     *
+     * @param generatedSourceDir the directory to which the annotation processor writes
+     * generated sources.
+     */
+    public void setGeneratedSourceDir(File generatedSourceDir) {
+        this.generatedSourceDir = generatedSourceDir;
+
+        ConfigurableFileTree generatedFiles = getProject().fileTree(generatedSourceDir);
+        generatedFiles.include("**/*.aj", "**/*.index", "**/*.hooks");
+        this.generatedFiles = generatedFiles;
+    }
+
+    /**
+     * Get the directory in which the state of incremental weaving is kept between builds.
+     *
+     * @return the directory in which the state of incremental weaving is kept.
+     */
+    @Internal
+    public File getStateDir() {
+        return stateDir;
+    }
+
+    public void setStateDir(File stateDir) {
+        this.stateDir = stateDir;
+    }
+
+    /**
+     * Get the maximum number of classes processed by a single worker.
+     * This doesn't affect the woven classes.
+     *
+     * @return the maximum number of classes processed by a single worker.
+     */
+    @Internal
+    public int getShardSize() {
+        return shardSize;
+    }
+
+    public void setShardSize(int shardSize) {
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Get the directory to which woven classes are written.
+     *
+     * @return the directory to which woven classes are written.
+     */
+    @OutputDirectory
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    public void setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Get the file to which the report of the last run is written. The report is an output of
+     * the task: when the task's output is pulled from the build cache, the report of the run
+     * that produced it is restored along with it.
+     *
+     * @return the file to which the report is written, or {@code null} if no report is written.
+     */
+    @OutputFile
+    @Optional
+    public File getReportFile() {
+        return reportFile;
+    }
+
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    @TaskAction
+    public void weave(IncrementalTaskInputs inputs) {
+
+        long startTime = System.nanoTime();
+        boolean isBinderBackend = AutoReceiverExtension.BACKEND_BINDER.equals(backend);
+        WeaveReport report = new WeaveReport(backend);
+        report.isIncremental = inputs.isIncremental();
+
+        // Aspects are only woven into the classes they target if these were copied from the
+        // classes directory: a woven class can't be woven again.
+        boolean isFullCopy = !inputs.isIncremental()
+                || (!isBinderBackend && !incrementalWeaving);
+
+        try {
+            if (isFullCopy) {
+                copyClasses(report);
+            } else {
+                copyChangedClasses(inputs, report);
+            }
+            report.copyTime = System.nanoTime() - startTime;
+
+            if (isBinderBackend) {
+                injectBinders(report);
+            } else {
+                weaveAspects(report);
+            }
+
+        } catch (IOException exception) {
+            throw new GradleException("Unable to weave " + outputDir, exception);
+        }
+
+        report.totalTime = System.nanoTime() - startTime;
+        writeReport(report);
+    }
+
+    // The report is only informative: failing to write it doesn't fail the build.
+    private void writeReport(WeaveReport report) {
+
+        if (null == reportFile) {
+            return;
+        }
+
+        try {
+            report.write(reportFile);
+        } catch (IOException exception) {
+            getLogger().warn("AutoReceiver: unable to write " + reportFile, exception);
+        }
+    }
+
+    private void copyClasses(WeaveReport report) throws IOException {
+
+        delete(outputDir);
+        Files.createDirectories(outputDir.toPath());
+        report.copiedCount = copy(classesDir, outputDir);
+    }
+
+    // Copies the classes that changed since the previous build, or all of them if other inputs
+    // changed, e.g. the classpath or the generated code.
+    private void copyChangedClasses(IncrementalTaskInputs inputs, WeaveReport report)
+            throws IOException {
+
+        final Path classesPath = classesDir.toPath();
+        final List<File> changedFiles = new ArrayList<>();
+        final List<File> removedFiles = new ArrayList<>();
+        final boolean[] isOtherInputChanged = {false};
+
+        inputs.outOfDate(new Action<InputFileDetails>() {
+
+            @Override
+            public void execute(InputFileDetails details) {
+                if (details.getFile().toPath().startsWith(classesPath)) {
+                    changedFiles.add(details.getFile());
+                } else {
+                    isOtherInputChanged[0] = true;
+                }
+            }
+        });
+
+        inputs.removed(new Action<InputFileDetails>() {
+
+            @Override
+            public void execute(InputFileDetails details) {
+                if (details.getFile().toPath().startsWith(classesPath)) {
+                    removedFiles.add(details.getFile());
+                } else {
+                    isOtherInputChanged[0] = true;
+                }
+            }
+        });
+
+        if (isOtherInputChanged[0]) {
+            copyClasses(report);
+            return;
+        }
+
+        getLogger().info("AutoReceiver: copying {} changed classes, removing {}",
+                changedFiles.size(), removedFiles.size());
+
+        for (File file : removedFiles) {
+            delete(getOutputFile(file));
+        }
+        report.removedCount = removedFiles.size();
+
+        for (File file : changedFiles) {
+            if (file.isFile()) {
+                report.copiedCount += copy(file, getOutputFile(file));
+            }
+        }
+    }
+
+    private void injectBinders(WeaveReport report) throws IOException {
+
+        BinderIndex index = BinderIndex.read(generatedSourceDir);
+        List<BinderIndex.Entry> entries = index.getEntries();
+
+        for (BinderIndex.Entry entry : entries) {
+            if (!entry.hasContext() && !entry.getHooks().isEmpty()) {
+                throw new GradleException(String.format("No accessible context available from "
+                                + "class %s needed for auto registration / unregistration of "
+                                + "broadcast receivers: call %s with a context instead",
+                        entry.getTargetName().replace('/', '.'),
+                        entry.getBinderName().replace('/', '.')));
+            }
+        }
+
+        int shardCount = (entries.size() + shardSize - 1) / shardSize;
+        getLogger().info("AutoReceiver: injecting binder calls into {} classes in {} shards",
+                entries.size(), shardCount);
+
+        long startTime = System.nanoTime();
+        report.targetCount = entries.size();
+        report.shardCount = shardCount;
+
+        List<File> resultFiles = new ArrayList<>();
+
+        for (int shardIndex = 0; shardIndex < shardCount; shardIndex++) {
+
+            final String shardName = String.format("shard %d of %d", shardIndex + 1, shardCount);
+            final ArrayList<BinderIndex.Entry> shardEntries = new ArrayList<>(entries.subList(
+                    shardIndex * shardSize,
+                    Math.min(entries.size(), (shardIndex + 1) * shardSize)));
+
+            final File resultFile = new File(getTemporaryDir(),
+                    String.format("inject-%d.count", shardIndex));
+            Files.deleteIfExists(resultFile.toPath());
+            resultFiles.add(resultFile);
+
+            workerExecutor.submit(InjectWorker.class, new Action<WorkerConfiguration>() {
+
+                @Override
+                public void execute(WorkerConfiguration config) {
+                    // Classes are rewritten independently: no process isolation is needed.
+                    config.setForkMode(ForkMode.NEVER);
+                    config.setDisplayName("Inject binder calls into " + shardName);
+                    config.setParams(shardName, outputDir, shardEntries, resultFile);
+                }
+            });
+        }
+
+        try {
+            workerExecutor.await();
+        } catch (WorkerExecutionException exception) {
+            throw new GradleException("Unable to inject binder calls into " + outputDir,
+                    exception);
+        }
+
+        // Classes that weren't copied already call their binder, and are left as is.
+        for (File resultFile : resultFiles) {
+            report.wovenCount += InjectWorker.readInjectedCount(resultFile);
+        }
+        report.restoredCount = entries.size() - report.wovenCount;
+
+        report.weaveTime = System.nanoTime() - startTime;
+    }
+
+    private void weaveAspects(WeaveReport report) throws IOException {
+
+        // Only the classes targeted by generated aspects are woven.
+        AspectIndex index = AspectIndex.read(generatedSourceDir);
+        if (index.isEmpty()) {
+            getLogger().info("AutoReceiver: no aspects generated, skipping ajc");
+            return;
+        }
+
+        List<String> options = new ArrayList<>();
+        options.add("-" + sourceCompatibility);
+        if (!bootClasspath.isEmpty()) {
+            options.add("-bootclasspath");
+            options.add(bootClasspath.getAsPath());
+        }
+
+        AspectWeaver weaver = new AspectWeaver(outputDir, stateDir, shardSize,
+                new AspectWeaver.ShardExecutor() {
+
+                    @Override
+                    public boolean execute(List<AspectWeaver.Shard> shards) {
+                        return executeAjc(shards);
+                    }
+                },
+                report,
+                getLogger());
+
+        if (incrementalWeaving) {
+            List<File> dependencies = new ArrayList<>(classpath.getFiles());
+            dependencies.addAll(bootClasspath.getFiles());
+
+            weaver.weave(index, classpath.getAsPath(), options, dependencies);
+
+        } else {
+            weaver.weaveAll(index, classpath.getAsPath(), options);
+        }
+    }
+
+    // Runs ajc for each shard in parallel, and waits for all runs to complete.
+    private boolean executeAjc(List<AspectWeaver.Shard> shards) {
+
+        for (final AspectWeaver.Shard shard : shards) {
+            workerExecutor.submit(AjcWorker.class, new Action<WorkerConfiguration>() {
+
+                @Override
+                public void execute(WorkerConfiguration config) {
+                    // ajc keeps state in static fields: concurrent runs must not share a class
+                    // loader, which in-process workers may do.
+                    config.setForkMode(ForkMode.ALWAYS);
+                    config.setDisplayName("Weave aspects into " + shard.getName());
+                    config.setParams(shard.getName(), shard.getClassCount(),
+                            new ArrayList<>(shard.getArgs()));
+                }
+            });
+        }
+
+        try {
+            workerExecutor.await();
+            return true;
+
+        } catch (WorkerExecutionException exception) {
+            getLogger().error(exception.getMessage(), exception);
+            return false;
+        }
+    }
+
+    private File getOutputFile(File classFile) {
+        return outputDir.toPath().resolve(classesDir.toPath().relativize(classFile.toPath()))
+                .toFile();
+    }
+
+    // Returns the number of files copied.
+    private static int copy(File source, File target) throws IOException {
+
+        if (source.isDirectory()) {
+            String[] fileNames = source.list();
+            if (null == fileNames) {
+                return 0;
+            }
+            int count = 0;
+            for (String fileName : fileNames) {
+                count += copy(new File(source, fileName), new File(target, fileName));
+            }
+            return count;
+        }
+
+        Files.createDirectories(target.toPath().getParent());
+        Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return 1;
+    }
+
+    private static void delete(File file) throws IOException {
+
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+
+        Files.deleteIfExists(file.toPath());
+    }
+}
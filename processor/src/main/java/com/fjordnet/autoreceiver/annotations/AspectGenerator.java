@@ -19,8 +19,11 @@ package com.fjordnet.autoreceiver.annotations;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,6 +33,7 @@ import javax.annotation.processing.Messager;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Elements;
@@ -39,18 +43,16 @@ import javax.tools.StandardLocation;
 
 import static com.fjordnet.autoreceiver.annotations.ProcessorUtils.*;
 import static java.lang.String.format;
-import static javax.lang.model.element.ElementKind.CONSTRUCTOR;
-import static javax.lang.model.element.ElementKind.FIELD;
-import static javax.lang.model.element.ElementKind.METHOD;
 import static javax.lang.model.element.Modifier.ABSTRACT;
 import static javax.lang.model.element.Modifier.FINAL;
 import static javax.lang.model.element.Modifier.PRIVATE;
 import static javax.lang.model.element.Modifier.STATIC;
+import static javax.lang.model.type.TypeKind.INT;
 import static javax.lang.model.type.TypeKind.VOID;
 import static javax.tools.Diagnostic.Kind.ERROR;
 
 /**
- * Generates aspect files for Auto Receiver.
+ * Generates aspect files for Auto Receiver, or alternatively plain Java binder classes.
  */
 public class AspectGenerator {
 
@@ -58,77 +60,435 @@ public class AspectGenerator {
     private static final String BROADCAST_RECEIVER_QUALIFIED_NAME
             = "android.content.BroadcastReceiver";
     private static final String INTENT_QUALIFIED_NAME = "android.content.Intent";
+    private static final String PENDING_RESULT_QUALIFIED_NAME
+            = "android.content.BroadcastReceiver.PendingResult";
+    private static final String DISPATCH_THREADS_QUALIFIED_NAME
+            = "com.fjordnet.autoreceiver.DispatchThreads";
+    private static final String LOCAL_BROADCASTS_QUALIFIED_NAME
+            = "com.fjordnet.autoreceiver.LocalBroadcasts";
+    private static final String COALESCER_QUALIFIED_NAME = "com.fjordnet.autoreceiver.Coalescer";
+    private static final String STICKY_BROADCASTS_QUALIFIED_NAME
+            = "com.fjordnet.autoreceiver.StickyBroadcasts";
+    private static final String SHARED_RECEIVERS_QUALIFIED_NAME
+            = "com.fjordnet.autoreceiver.SharedReceivers";
+    private static final String LEAK_DETECTOR_QUALIFIED_NAME
+            = "com.fjordnet.autoreceiver.LeakDetector";
+    private static final String DEFERRED_REGISTRATIONS_QUALIFIED_NAME
+            = "com.fjordnet.autoreceiver.DeferredRegistrations";
+    private static final String RECEIVER_METRICS_QUALIFIED_NAME
+            = "com.fjordnet.autoreceiver.ReceiverMetrics";
+    private static final String METERED_RECEIVER_QUALIFIED_NAME
+            = "com.fjordnet.autoreceiver.MeteredReceiver";
+    private static final String WEAK_REFERENCE_QUALIFIED_NAME = "java.lang.ref.WeakReference";
+
+    // Models may be rendered concurrently: each thread renders into its own buffer, reused for
+    // all the files it renders.
+    private static final ThreadLocal<CodeEmitter> EMITTERS = ThreadLocal.withInitial(
+            CodeEmitter::new);
 
     private final Elements elements;
     private final Types types;
     private final Filer filer;
     private final Messager messager;
+    private final boolean isMultiplexed;
+    private final boolean isMetered;
+    private final TypeCache typeCache;
+    private final ProcessorReport report;
+
+    /**
+     * Create a generator.
+     *
+     * @param elements the element utilities of the processing environment.
+     * @param types the type utilities of the processing environment.
+     * @param filer the filer to which generated files are written.
+     * @param messager the messager to which errors are reported.
+     * @param isMultiplexed {@code true} to serve all annotated methods of a class registered
+     * and unregistered in the same lifecycle methods with a single broadcast receiver,
+     * {@code false} for a broadcast receiver per annotated method.
+     * @param isMetered {@code true} to report the metrics of generated receivers to
+     * {@code ReceiverMetrics}, {@code false} to generate no instrumentation at all.
+     * @param typeCache the cache of the types and members resolved during the round, shared by
+     * all classes of the round.
+     * @param report the report to which the work done is recorded.
+     */
+    public AspectGenerator(Elements elements,
+            Types types,
+            Filer filer,
+            Messager messager,
+            boolean isMultiplexed,
+            boolean isMetered,
+            TypeCache typeCache,
+            ProcessorReport report) {
 
-    private String contextAccessor;
-
-    public AspectGenerator(Elements elements, Types types, Filer filer, Messager messager) {
         this.elements = elements;
         this.types = types;
         this.filer = filer;
         this.messager = messager;
+        this.isMultiplexed = isMultiplexed;
+        this.isMetered = isMetered;
+        this.typeCache = typeCache;
+        this.report = report;
     }
 
-    public void generateAspectFor(Element classElement, List<Element> methodElements)
-            throws IOException {
-
-        contextAccessor = null;
+    /**
+     * Build the model of the aspect of the specified class: the annotated methods are validated,
+     * and everything the aspect is rendered from is resolved, reporting errors to the messager.
+     *
+     * @param classElement the class containing the annotated methods.
+     * @param methodElements the annotated methods.
+     *
+     * @return the model of the aspect and its index.
+     */
+    public ClassModel buildAspectModelFor(Element classElement, List<Element> methodElements) {
 
-        String packageName = getPackageName(classElement, elements);
         String className = classElement.getSimpleName().toString();
-        String aspectName = format("%sReceiverAspect", className);
+        AspectModel model = new AspectModel(getTopLevelClass(classElement),
+                getPackageName(classElement, elements), className,
+                format("%sReceiverAspect", className),
+                elements.getBinaryName((TypeElement) classElement).toString());
+
+        model.callbacks.addAll(getCallbacksFor(getValidMethodsFor(methodElements)));
+        model.receivers.addAll(getReceiversFor(model.callbacks));
+        validateActionsFor(model.receivers);
+
+        // Intermediate class.
+        Element parentClass = typeCache.getParentClass(classElement);
+        model.injectedClassName = format("ReceiverManaged%s",
+                null == parentClass ? "" : parentClass.getSimpleName());
+        model.parentClassName = null == parentClass
+                ? null
+                : getFullyQualifiedName(parentClass, elements);
+
+        Map<String, List<Receiver>> registrationMap = new LinkedHashMap<>();
+        Map<String, List<Receiver>> unregistrationMap = new LinkedHashMap<>();
+
+        for (Receiver receiver : model.receivers) {
+            addLifecycleMethod(registrationMap, receiver.registerIn, receiver);
+            addLifecycleMethod(unregistrationMap, receiver.unregisterIn, receiver);
+        }
+
+        // Lifecycle methods inherited by the class are overridden by the intermediate class.
+        // If any receivers cannot be automatically registered or unregistered there,
+        // as the lifecycle method is declared by the class itself, they are advised instead.
+        Map<ExecutableElement, List<Receiver>> unprocessedRegistrations = new LinkedHashMap<>();
+        Map<ExecutableElement, List<Receiver>> unprocessedUnregistrations = new LinkedHashMap<>();
+        ExecutableElement unprocessedMethod;
+
+        for (String methodName : registrationMap.keySet()) {
+            unprocessedMethod = buildAutoLogicFor(model, methodName, classElement,
+                    new RegistrationCodeWriter(registrationMap.get(methodName),
+                            model.injectedClassName));
+            if (null != unprocessedMethod) {
+                unprocessedRegistrations.put(unprocessedMethod, registrationMap.get(methodName));
+            }
+        }
+
+        for (String methodName : unregistrationMap.keySet()) {
+            unprocessedMethod = buildAutoLogicFor(model, methodName, classElement,
+                    new UnregistrationCodeWriter(unregistrationMap.get(methodName)));
+            if (null != unprocessedMethod) {
+                unprocessedUnregistrations.put(unprocessedMethod,
+                        unregistrationMap.get(methodName));
+            }
+        }
+
+        // Advice for registration and unregistration.
+        for (ExecutableElement method : unprocessedRegistrations.keySet()) {
+            model.advice.add(buildAdviceFor(method,
+                    new RegistrationCodeWriter(unprocessedRegistrations.get(method),
+                            method.getEnclosingElement().asType().toString())));
+        }
+
+        for (ExecutableElement method : unprocessedUnregistrations.keySet()) {
+            model.advice.add(buildAdviceFor(method,
+                    new UnregistrationCodeWriter(unprocessedUnregistrations.get(method))));
+        }
 
-        FileObject aspectFile = filer.createResource(StandardLocation.SOURCE_OUTPUT,
-                packageName, format("%s.aj", aspectName));
+        return model;
+    }
+
+    /**
+     * <p>
+     * Build the model of the binder of the specified class, as an alternative to an aspect.
+     * The binder is plain Java, so it requires neither ajc nor the AspectJ runtime.
+     * </p><p>
+     * The binder has static {@code register} and {@code unregister} methods for all receivers of
+     * the class, as well as a static method named after each method specified by
+     * {@link OnReceiveBroadcast#registerIn()} and {@link OnReceiveBroadcast#unregisterIn()},
+     * to be called from that method. Each of these methods takes the target instance and the
+     * context with which receivers are registered. If the class has access to a context,
+     * overloads that only take the target instance are generated as well.
+     * </p>
+     *
+     * @param classElement the class containing the annotated methods.
+     * @param methodElements the annotated methods.
+     *
+     * @return the model of the binder and its hooks.
+     */
+    public ClassModel buildBinderModelFor(Element classElement, List<Element> methodElements) {
+
+        BinderModel model = new BinderModel(getTopLevelClass(classElement),
+                getPackageName(classElement, elements),
+                getBinderNameFor((TypeElement) classElement),
+                ((TypeElement) classElement).getQualifiedName().toString(),
+                elements.getBinaryName((TypeElement) classElement).toString());
+
+        model.receivers.addAll(getReceiversFor(getCallbacksFor(
+                getValidMethodsFor(methodElements))));
+
+        for (Receiver receiver : model.receivers) {
+            addLifecycleMethod(model.registrationMap, receiver.registerIn, receiver);
+            addLifecycleMethod(model.unregistrationMap, receiver.unregisterIn, receiver);
+        }
+
+        // Lifecycle methods, in order of appearance.
+        model.lifecycleMethodNames.addAll(model.registrationMap.keySet());
+        model.lifecycleMethodNames.addAll(model.unregistrationMap.keySet());
+
+        for (String methodName : model.lifecycleMethodNames) {
+            ExecutableElement method = typeCache.findMethodByName(methodName, classElement);
+            if (null == method) {
+                messager.printMessage(ERROR, format("Method %1$s not found: check @%2$s attributes",
+                        methodName, OnReceiveBroadcast.class.getSimpleName()));
+            } else {
+                model.lifecycleMethods.put(methodName, new LifecycleMethod(method,
+                        getDescriptor(method, elements, types)));
+            }
+        }
+
+        // Unlike with aspects, a context is optional, as it can be passed to the binder.
+        model.contextAccessor = typeCache.findContextAccessor(classElement);
+
+        validateActionsFor(model.receivers);
+
+        return model;
+    }
+
+    /**
+     * Render the files of the specified model. Rendering doesn't access elements, the type
+     * cache or the messager, so models may be rendered concurrently, on any thread.
+     *
+     * @param model the model to be rendered.
+     *
+     * @return the rendered files, to be written with {@link #write(GeneratedFile)}.
+     */
+    public List<GeneratedFile> render(ClassModel model) {
+        return model.render(EMITTERS.get());
+    }
 
-        Writer writer = aspectFile.openWriter();
+    /**
+     * Write the specified file to the filer. Files must be written from the processor thread.
+     *
+     * @param file the file to be written.
+     *
+     * @throws IOException if the file can't be written.
+     */
+    public void write(GeneratedFile file) throws IOException {
+
+        // The enclosing top level class is the sole originating element of the file,
+        // which allows Gradle to process the annotations incrementally (isolating).
+        FileObject fileObject = file.isSource()
+                ? filer.createSourceFile(file.getPackageName().isEmpty()
+                                ? file.getName()
+                                : format("%s.%s", file.getPackageName(), file.getName()),
+                        file.getOriginatingElement())
+                : filer.createResource(StandardLocation.SOURCE_OUTPUT, file.getPackageName(),
+                        file.getName(), file.getOriginatingElement());
+
+        try (Writer writer = report.track(fileObject.openWriter())) {
+            writer.write(file.getContent());
+        }
+    }
+
+    private void renderAspect(AspectModel model, CodeEmitter code) {
 
         // Package.
-        writer.write(format("package %s;\n\n", packageName));
+        code.emit("package %s;\n\n", model.packageName);
 
         // Imports.
-        writer.write(format("import %1$s;\nimport %2$s;\nimport %3$s;\n"
+        code.emit("import %1$s;\nimport %2$s;\nimport %3$s;\n"
                 + "import android.content.IntentFilter;\n\n",
                 BROADCAST_RECEIVER_QUALIFIED_NAME,
                 CONTEXT_QUALIFIED_NAME,
-                INTENT_QUALIFIED_NAME));
+                INTENT_QUALIFIED_NAME);
 
         // Aspect declaration.
-        writer.write(format("public aspect %s {\n\n", aspectName));
+        code.emit("public aspect %s {\n\n", model.aspectName);
 
-        // Intermediate class.
-        Element parentClass = getParentClass(classElement, types);
-        String injectedClassName = format("ReceiverManaged%s",
-                null == parentClass ? "" : parentClass.getSimpleName());
+        // Intent filters, shared by all instances.
+        generateFiltersFor(model.receivers, code, "\t");
 
-        writer.write(format("\tpublic static abstract class %s%s {\n\n", injectedClassName,
-                null == parentClass
+        // Intermediate class.
+        code.emit("\tpublic static abstract class %s%s {\n\n", model.injectedClassName,
+                null == model.parentClassName
                         ? ""
-                        : format(" extends %s", getFullyQualifiedName(parentClass, elements))));
+                        : format(" extends %s", model.parentClassName));
 
         // Generate broadcast receiver logic.
-        // If any receivers cannot be automatically registered or unregistered
-        // in the injected class, they will be returned in the UnprocessedAutoLogic instance.
-        UnprocessedAutoLogic unprocessed = generateBroadcastReceiversFor(methodElements,
-                classElement, writer, "\t\t");
+        generateBroadcastReceiversFor(model, code, "\t\t");
 
         // End intermediate class.
-        writer.write("\t}\n\n");
+        code.emit("\t}\n\n");
 
         // Declare parents.
-        writer.write(format("\tdeclare parents: %s extends %s;\n\n", className, injectedClassName));
+        code.emit("\tdeclare parents: %s extends %s;\n\n", model.className,
+                model.injectedClassName);
 
         // Generate advice for registration and unregistration.
-        generateAdviceFor(unprocessed, writer, "\t");
+        for (AutoLogic advice : model.advice) {
+            generateAdviceFor(advice, code, "\t");
+        }
 
         // End aspect.
-        writer.write("}\n");
+        code.emit("}\n");
+    }
+
+    // Indexes the aspect, so that only its target class is woven by the Gradle plugin.
+    private static void renderIndex(AspectModel model, CodeEmitter code) {
+
+        code.emit("aspect=%s\n", model.packageName.isEmpty()
+                ? model.aspectName
+                : format("%s.%s", model.packageName, model.aspectName));
+        code.emit("target=%s\n", model.targetBinaryName);
+    }
+
+    private void renderBinder(BinderModel model, CodeEmitter code) {
+
+        String targetName = model.targetName;
+
+        // Package.
+        if (!model.packageName.isEmpty()) {
+            code.emit("package %s;\n\n", model.packageName);
+        }
+
+        // Imports.
+        code.emit("import %1$s;\nimport %2$s;\nimport %3$s;\n"
+                        + "import android.content.IntentFilter;\n\n"
+                        + "import java.util.Map;\nimport java.util.WeakHashMap;\n\n",
+                BROADCAST_RECEIVER_QUALIFIED_NAME,
+                CONTEXT_QUALIFIED_NAME,
+                INTENT_QUALIFIED_NAME);
+
+        // Binder declaration.
+        code.emit("/**\n * Registers and unregisters the broadcast receivers of "
+                + "{@link %1$s}.\n */\npublic final class %2$s {\n\n", targetName,
+                model.binderName);
+
+        // Target instances are only held weakly, so that instances left registered are still
+        // collected, as receivers don't reference them either.
+        code.emit("\tprivate static final Map<%1$s, Receivers> RECEIVERS "
+                + "= new WeakHashMap<>();\n\n", targetName);
+
+        // Intent filters, shared by all target instances.
+        generateFiltersFor(model.receivers, code, "\t");
+
+        code.emit("\tprivate %1$s() {\n\t}\n\n", model.binderName);
+
+        // Methods for all receivers.
+        generateBinderMethodFor("register", targetName, model.contextAccessor, code,
+                null, new RegistrationCodeWriter(model.receivers, targetName));
+        generateBinderMethodFor("unregister", targetName, model.contextAccessor, code,
+                new UnregistrationCodeWriter(model.receivers), null);
+
+        // Methods for each lifecycle method.
+        for (String methodName : model.lifecycleMethodNames) {
+
+            List<Receiver> registeredReceivers = model.registrationMap.get(methodName);
+            List<Receiver> unregisteredReceivers = model.unregistrationMap.get(methodName);
+
+            generateBinderMethodFor(methodName, targetName, model.contextAccessor, code,
+                    null == unregisteredReceivers
+                            ? null
+                            : new UnregistrationCodeWriter(unregisteredReceivers),
+                    null == registeredReceivers
+                            ? null
+                            : new RegistrationCodeWriter(registeredReceivers, targetName));
+        }
+
+        // Receivers lookup.
+        code.emit("\tprivate static Receivers getReceivers(%1$s target) {\n"
+                        + "\t\tReceivers receivers = RECEIVERS.get(target);\n"
+                        + "\t\tif (null == receivers) {\n"
+                        + "\t\t\treceivers = new Receivers();\n"
+                        + "\t\t\tRECEIVERS.put(target, receivers);\n"
+                        + "\t\t}\n"
+                        + "\t\treturn receivers;\n"
+                        + "\t}\n\n",
+                targetName);
+
+        // Receivers of a target instance.
+        code.emit("\tprivate static class Receivers {\n\n");
+
+        // Receivers are kept for as long as the target instance, so that they're reused by its
+        // following registrations.
+        for (Receiver receiver : model.receivers) {
+            code.emit("\t\t%1$s %2$s;\n", getReceiverType(), receiver.name);
+            code.emit("\t\tboolean %s;\n", getRegisteredFlagFor(receiver));
+            generateDeferredRegistrationFor(receiver, code, "\t\t");
+            generateCoalescersFor(receiver, code, "\t\t");
+        }
+
+        code.emit("\t}\n");
+
+        // End binder.
+        code.emit("}\n");
+    }
+
+    // Lists the lifecycle methods, so that the Gradle plugin can inject calls to the binder.
+    private static void renderHooks(BinderModel model, CodeEmitter code) {
+
+        code.emit("binder=%s\n", model.packageName.isEmpty()
+                ? model.binderName
+                : format("%s.%s", model.packageName, model.binderName));
+        code.emit("target=%s\n", model.targetBinaryName);
+        code.emit("context=%s\n", null != model.contextAccessor);
+        code.emit("hooks=%s\n", join(model.lifecycleMethods.keySet(), ","));
 
-        writer.close();
+        for (LifecycleMethod method : model.lifecycleMethods.values()) {
+            code.emit("hook.%1$s.descriptor=%2$s\n", method.name, method.descriptor);
+            code.emit("hook.%1$s.modifiers=%2$s\n", method.name, join(method.modifiers, " "));
+        }
+    }
+
+    private void generateBinderMethodFor(String methodName,
+            String targetName,
+            String contextAccessor,
+            CodeEmitter code,
+            CodeWriter unregistrationCodeWriter,
+            CodeWriter registrationCodeWriter) {
+
+        final String classVar = "target";
+        final String contextVar = "context";
+        final String receiversVar = "receivers";
+
+        code.emit("\tpublic static void %1$s(%2$s %3$s, Context %4$s) {\n\n",
+                methodName,
+                targetName,
+                classVar,
+                contextVar);
+
+        code.emit("\t\tfinal Receivers %1$s = getReceivers(%2$s);\n\n",
+                receiversVar, classVar);
+
+        if (null != unregistrationCodeWriter) {
+            unregistrationCodeWriter.writeCode(code, "\t\t", contextVar, classVar, receiversVar);
+        }
+
+        if (null != registrationCodeWriter) {
+            registrationCodeWriter.writeCode(code, "\t\t", contextVar, classVar, receiversVar);
+        }
+
+        code.emit("\t}\n\n");
+
+        // Overload using the context accessible from the target instance.
+        if (null != contextAccessor) {
+            code.emit("\tpublic static void %1$s(%2$s %3$s) {\n"
+                            + "\t\t%1$s(%3$s, %4$s);\n\t}\n\n",
+                    methodName,
+                    targetName,
+                    classVar,
+                    getContextExpression(classVar, contextAccessor));
+        }
     }
 
     protected boolean isValidAnnotatedMethod(ExecutableElement methodElement) {
@@ -153,100 +513,127 @@ public class AspectGenerator {
             return false;
         }
 
-        return true;
-    }
+        // Verify parameters are the intent, the receiver, the index of the action, or extras of
+        // a supported type.
+        TypeMirror intentType = typeCache.getType(INTENT_QUALIFIED_NAME);
+        TypeMirror receiverType = typeCache.getType(BROADCAST_RECEIVER_QUALIFIED_NAME);
+        TypeMirror pendingResultType = typeCache.getType(PENDING_RESULT_QUALIFIED_NAME);
+
+        int actionIndexCount = 0;
+        for (VariableElement parameter : methodElement.getParameters()) {
+
+            if (null != parameter.getAnnotation(Extra.class)) {
+                try {
+                    Extras.getExtraExpression("intent", parameter, elements, types);
+                } catch (IllegalArgumentException exception) {
+                    printMethodValidationError(methodElement, exception.getMessage());
+                    return false;
+                }
+                continue;
+            }
 
-    private UnprocessedAutoLogic generateBroadcastReceiversFor(List<Element> methodElements,
-            Element classElement,
-            Writer writer,
-            String tabs) throws IOException {
+            TypeMirror parameterType = parameter.asType();
+            if (!types.isSameType(intentType, parameterType)
+                    && !types.isSameType(receiverType, parameterType)
+                    && !types.isSameType(pendingResultType, parameterType)
+                    && INT != parameterType.getKind()) {
+
+                printMethodValidationError(methodElement, format(
+                        "cannot have parameter %1$s %2$s",
+                        parameterType,
+                        parameter.getSimpleName()));
+                return false;
+            }
 
-        Map<String, List<ExecutableElement>> registrationMap = new HashMap<>();
-        Map<String, List<ExecutableElement>> unregistrationMap = new HashMap<>();
+            if (INT == parameterType.getKind()) {
+                actionIndexCount++;
+            }
+        }
 
-        for (Element element : methodElements) {
-            ExecutableElement methodElement = (ExecutableElement) element;
-            String methodName = methodElement.getSimpleName().toString();
+        // Verify an int parameter is unambiguously the index of the action among several ones.
+        OnReceiveBroadcast annotation = methodElement.getAnnotation(OnReceiveBroadcast.class);
+        if (1 < actionIndexCount) {
+            printMethodValidationError(methodElement,
+                    "cannot have more than one int parameter, as it's passed the action index");
+            return false;
+        }
 
-            // Skip invalid methods.
-            if (!isValidAnnotatedMethod(methodElement)) {
-                continue;
-            }
+        if (1 == actionIndexCount
+                && 1 == new LinkedHashSet<>(Arrays.asList(annotation.value())).size()) {
+            printMethodValidationError(methodElement,
+                    "cannot have an int parameter unless annotated with several actions");
+            return false;
+        }
 
-            // Broadcast receiver declaration.
-            writer.write(format("%1$sBroadcastReceiver %2$s;\n\n", tabs,
-                    getReceiverNameFor(methodName)));
+        // Verify broadcasts are either debounced or throttled, for a positive period.
+        if (0 > annotation.debounce() || 0 > annotation.throttle()) {
+            printMethodValidationError(methodElement, "cannot have a negative coalescing period");
+            return false;
+        }
 
-            // Empty callback (overridden by target class).
+        if (0 < annotation.debounce() && 0 < annotation.throttle()) {
+            printMethodValidationError(methodElement, "cannot be both debounced and throttled");
+            return false;
+        }
 
-            // Remove invalid modifiers.
-            Set<Modifier> modifiers = new HashSet<>(methodElement.getModifiers());
-            modifiers.remove(ABSTRACT);
-            modifiers.remove(FINAL);
+        // Verify the broadcast can be made asynchronous: goAsync() must be called from
+        // onReceive, and its pending result is finished by the generated code if async.
+        if (isCoalesced(annotation) && isGoingAsync(methodElement)) {
+            printMethodValidationError(methodElement, "cannot be both coalesced and asynchronous");
+            return false;
+        }
 
-            writer.write(format("%s%s abstract void %s(%s);\n\n",
-                    tabs,
-                    join(modifiers, ", "),
-                    methodName,
-                    stringifyParameters(methodElement)));
+        if (annotation.local() && annotation.sticky()) {
+            printMethodValidationError(methodElement, "cannot be both local and sticky");
+            return false;
+        }
 
-            // Determine registration and unregistration methods.
-            OnReceiveBroadcast annotation = methodElement.getAnnotation(OnReceiveBroadcast.class);
+        if (0 != annotation.priority() && !annotation.deferred()) {
+            printMethodValidationError(methodElement, "cannot have a priority unless deferred");
+            return false;
+        }
 
-            String registerIn = annotation.registerIn();
-            List<ExecutableElement> registrationMethods;
-            if (registrationMap.containsKey(registerIn)) {
-                registrationMethods = registrationMap.get(registerIn);
-            } else {
-                registrationMethods = new ArrayList<>();
-                registrationMap.put(registerIn, registrationMethods);
-            }
-            registrationMethods.add(methodElement);
+        if (annotation.local() && annotation.shared()) {
+            printMethodValidationError(methodElement, "cannot be both local and shared");
+            return false;
+        }
 
-            String unregisterIn = annotation.unregisterIn();
-            List<ExecutableElement> unregistrationMethods;
-            if (unregistrationMap.containsKey(unregisterIn)) {
-                unregistrationMethods = unregistrationMap.get(unregisterIn);
-            } else {
-                unregistrationMethods = new ArrayList<>();
-                unregistrationMap.put(unregisterIn, unregistrationMethods);
-            }
-            unregistrationMethods.add(methodElement);
+        // Broadcasts fanned out or dispatched in-process can't be made asynchronous.
+        if (annotation.shared() && isGoingAsync(methodElement)) {
+            printMethodValidationError(methodElement, "cannot be both shared and asynchronous");
+            return false;
         }
 
-        // Registration methods.
-        UnprocessedAutoLogic unprocessed = new UnprocessedAutoLogic();
-        ExecutableElement unprocessedMethod;
-        for (String methodName : registrationMap.keySet()) {
-            unprocessedMethod = generateAutoLogicFor(methodName, classElement, writer, tabs,
-                    new RegistrationCodeWriter(registrationMap.get(methodName)));
-            if (null != unprocessedMethod) {
-                unprocessed.registrationMap.put(unprocessedMethod, registrationMap.get(methodName));
-            }
+        if (annotation.local() && isGoingAsync(methodElement)) {
+            printMethodValidationError(methodElement, "cannot be both local and asynchronous");
+            return false;
         }
 
-        // Unregistration methods.
-        for (String methodName : unregistrationMap.keySet()) {
-            unprocessedMethod = generateAutoLogicFor(methodName, classElement, writer, tabs,
-                    new UnregistrationCodeWriter(unregistrationMap.get(methodName)));
-            if (null != unprocessedMethod) {
-                unprocessed.unregistrationMap.put(unprocessedMethod,
-                        unregistrationMap.get(methodName));
-            }
+        // The sticky intent delivered on registration has no pending result.
+        if (annotation.sticky() && hasPendingResult(methodElement)) {
+            printMethodValidationError(methodElement,
+                    "cannot be sticky and take a PendingResult parameter");
+            return false;
         }
 
-        return unprocessed;
+        if (annotation.async() && hasPendingResult(methodElement)) {
+            printMethodValidationError(methodElement,
+                    "cannot have a PendingResult parameter when async, as it's finished on return");
+            return false;
+        }
+
+        return true;
     }
 
-    // Returns unprocessed method or null if it was processed.
-    private ExecutableElement generateAutoLogicFor(String methodName,
+    // Returns the unprocessed method, or null if it was processed: either overridden by the
+    // intermediate class, or not found.
+    private ExecutableElement buildAutoLogicFor(AspectModel model,
+            String methodName,
             Element classElement,
-            Writer writer,
-            String tabs,
-            CodeWriter codeWriter) throws IOException {
+            CodeWriter codeWriter) {
 
         // Find the method.
-        ExecutableElement method = findMethodByName(methodName, classElement, types);
+        ExecutableElement method = typeCache.findMethodByName(methodName, classElement);
         if (null == method) {
             messager.printMessage(ERROR, format("Method %1$s not found: check @%2$s attributes",
                     methodName, OnReceiveBroadcast.class.getSimpleName()));
@@ -259,104 +646,129 @@ public class AspectGenerator {
             return method;
         }
 
-        generateOverrideMethodFor(method, classElement, writer, tabs, codeWriter);
+        model.overrides.add(new AutoLogic(new LifecycleMethod(method, null),
+                getContextExpression("target", getContextAccessorCode(classElement)),
+                codeWriter));
         return null;
     }
 
-    private void generateOverrideMethodFor(ExecutableElement method,
-            Element classElement,
-            Writer writer,
-            String tabs,
-            CodeWriter codeWriter)
-            throws IOException {
+    private AutoLogic buildAdviceFor(ExecutableElement method, CodeWriter codeWriter) {
+
+        return new AutoLogic(new LifecycleMethod(method, null),
+                getContextExpression("targetInstance",
+                        getContextAccessorCode(method.getEnclosingElement())),
+                codeWriter);
+    }
+
+    private void generateBroadcastReceiversFor(AspectModel model,
+            CodeEmitter code,
+            String tabs) {
+
+        for (Receiver receiver : model.receivers) {
+
+            // Broadcast receiver declaration.
+            code.emit("%1$s%2$s %3$s;\n", tabs, getReceiverType(), receiver.name);
+            code.emit("%1$sboolean %2$s;\n", tabs, getRegisteredFlagFor(receiver));
+            generateDeferredRegistrationFor(receiver, code, tabs);
+            generateCoalescersFor(receiver, code, tabs);
+            code.emit("\n");
+        }
+
+        for (Callback callback : model.callbacks) {
+
+            // Empty callback (overridden by target class).
+
+            // Remove invalid modifiers.
+            Set<Modifier> modifiers = new HashSet<>(callback.modifiers);
+            modifiers.remove(ABSTRACT);
+            modifiers.remove(FINAL);
+
+            code.emit("%s%s abstract void %s(%s);\n\n",
+                    tabs,
+                    join(modifiers, ", "),
+                    callback.name,
+                    callback.parameters);
+        }
+
+        // Registration and unregistration methods.
+        for (AutoLogic override : model.overrides) {
+            generateOverrideMethodFor(override, model.injectedClassName, code, tabs);
+        }
+    }
 
-        String methodName = method.getSimpleName().toString();
+    private static void generateOverrideMethodFor(AutoLogic override,
+            String injectedClassName,
+            CodeEmitter code,
+            String tabs) {
+
+        LifecycleMethod method = override.method;
 
         // Registration method declaration.
-        writer.write(format("%1$s@Override\n%1$s%2$s %3$s %4$s(%5$s) {\n%1$s\t",
+        code.emit("%1$s@Override\n%1$s%2$s %3$s %4$s(%5$s) {\n%1$s\t",
                 tabs,
-                join(method.getModifiers(), ", "),
-                stringifyReturnType(method),
-                methodName,
-                stringifyParameters(method)));
+                join(method.modifiers, ", "),
+                method.returnType,
+                method.name,
+                method.parameters);
 
         // Check if there's a return type.
-        TypeMirror returnType = method.getReturnType();
-        boolean hasReturn = VOID != returnType.getKind();
         final String resultVar = "result";
-        if (hasReturn) {
-            writer.write(format("%1$s %2$s = ", returnType, resultVar));
+        if (method.hasReturn) {
+            code.emit("%1$s %2$s = ", method.returnType, resultVar);
         }
 
         // Call super.
-        writer.write(
-                format("super.%1$s(%2$s);\n\n", methodName, join(method.getParameters(), ", ")));
+        code.emit("super.%1$s(%2$s);\n\n", method.name, method.argumentNames);
 
-        // Method implementation.
-        codeWriter.writeCode(writer, tabs + "\t",
-                getContextAccessorCode(classElement),
-                null);
+        // Method implementation, in a static method so that the receivers created there don't
+        // reference the enclosing instance.
+        String helperName = format("%1$sReceivers", method.name);
+        code.emit("%1$s\t%2$s(this);\n", tabs, helperName);
 
         // Return result, if applicable.
-        if (hasReturn) {
-            writer.write(format("%1$s\treturn %2$s;\n", tabs, resultVar));
+        if (method.hasReturn) {
+            code.emit("%1$s\treturn %2$s;\n", tabs, resultVar);
         }
 
         // End registration method declaration.
-        writer.write(format("%1$s}\n\n", tabs));
-    }
+        code.emit("%1$s}\n\n", tabs);
 
-    private void generateAdviceFor(UnprocessedAutoLogic unprocessed,
-            Writer writer,
-            String tabs)
-            throws IOException {
+        final String classVar = "target";
+        code.emit("%1$sprivate static void %2$s(%3$s %4$s) {\n\n", tabs, helperName,
+                injectedClassName, classVar);
 
-        // Registration.
-        for (ExecutableElement method : unprocessed.registrationMap.keySet()) {
-            generateAdviceFor(method, writer, tabs,
-                    new RegistrationCodeWriter(unprocessed.registrationMap.get(method)));
-        }
+        override.codeWriter.writeCode(code, tabs + "\t", override.contextExpression, classVar,
+                classVar);
 
-        // Unregistration.
-        for (ExecutableElement method : unprocessed.unregistrationMap.keySet()) {
-            generateAdviceFor(method, writer, tabs,
-                    new UnregistrationCodeWriter(unprocessed.unregistrationMap.get(method)));
-        }
+        code.emit("%1$s}\n\n", tabs);
     }
 
-    private void generateAdviceFor(ExecutableElement method,
-            Writer writer,
-            String tabs,
-            CodeWriter codeWriter) throws IOException {
+    private static void generateAdviceFor(AutoLogic advice, CodeEmitter code, String tabs) {
 
         String classVar = "targetInstance";
-        Element classElement = method.getEnclosingElement();
+        LifecycleMethod method = advice.method;
 
         // Advice.
 
         // After with arguments.
-        writer.write(format("%1$safter(%2$s %3$s): ", tabs, classElement.asType(), classVar));
+        code.emit("%1$safter(%2$s %3$s): ", tabs, method.declaringType, classVar);
 
         // Pointcut.
-        writer.write(format("execution(%1$s %2$s.%3$s(..)) && target(%4$s) {\n\n",
-                stringifyReturnType(method), classElement.getSimpleName(), method.getSimpleName(),
-                classVar));
+        code.emit("execution(%1$s %2$s.%3$s(..)) && target(%4$s) {\n\n",
+                method.returnType, method.declaringName, method.name, classVar);
 
         // Advice implementation.
-        codeWriter.writeCode(writer, tabs + "\t", getContextAccessorCode(classElement), classVar);
+        advice.codeWriter.writeCode(code, tabs + "\t", advice.contextExpression, classVar,
+                classVar);
 
         // End advice.
-        writer.write(format("%1$s}\n\n", tabs));
+        code.emit("%1$s}\n\n", tabs);
     }
 
-    private String getContextAccessorCode(Element classElement) throws IOException {
-
-        if (null != contextAccessor) {
-            return contextAccessor;
-        }
+    private String getContextAccessorCode(Element classElement) {
 
         // Find context accessor element, if available.
-        contextAccessor = findContextAccessorElement(classElement);
+        String contextAccessor = typeCache.findContextAccessor(classElement);
 
         if (null == contextAccessor) {
             // Access to context is required for
@@ -372,191 +784,1198 @@ public class AspectGenerator {
         return contextAccessor;
     }
 
-    private String findContextAccessorElement(Element classElement) {
+    private void printMethodValidationError(ExecutableElement methodElement, String errorFragment) {
+
+        messager.printMessage(ERROR,
+                format("Callback methods annotated with @%1$s %2$s: %3$s.%4$s",
+                        OnReceiveBroadcast.class.getSimpleName(),
+                        errorFragment,
+                        getFullyQualifiedName(methodElement.getEnclosingElement(), elements),
+                        methodElement.getSimpleName().toString()));
+    }
+
+    private List<ExecutableElement> getValidMethodsFor(List<Element> methodElements) {
 
-        TypeMirror contextType = elements.getTypeElement(CONTEXT_QUALIFIED_NAME).asType();
+        List<ExecutableElement> methods = new ArrayList<>();
+        for (Element element : methodElements) {
+            ExecutableElement methodElement = (ExecutableElement) element;
 
-        // If the class itself extends from Context, return it.
-        if (types.isAssignable(classElement.asType(), contextType)) {
-            return "";
+            // Skip invalid methods.
+            if (isValidAnnotatedMethod(methodElement)) {
+                methods.add(methodElement);
+            }
         }
 
-        // Iterate through enclosed members and fields
-        // to determine if one of them returns a Context.
-        List<? extends Element> memberElements = classElement.getEnclosedElements();
-        for (Element member : memberElements) {
+        return methods;
+    }
 
-            // Skip elements that have private scope.
-            if (member.getModifiers().contains(Modifier.PRIVATE)) {
-                continue;
+    // Resolves everything the callbacks are rendered from. Parameters are validated beforehand.
+    private List<Callback> getCallbacksFor(List<ExecutableElement> methods) {
+
+        final TypeMirror intentType = typeCache.getType(INTENT_QUALIFIED_NAME);
+        final TypeMirror pendingResultType = typeCache.getType(PENDING_RESULT_QUALIFIED_NAME);
+
+        List<Callback> callbacks = new ArrayList<>();
+        for (ExecutableElement method : methods) {
+
+            // Arguments for the callback.
+            List<Argument> arguments = new ArrayList<>();
+            for (VariableElement parameter : method.getParameters()) {
+
+                // Extras are read once per invocation, with the accessor of their type.
+                if (null != parameter.getAnnotation(Extra.class)) {
+                    arguments.add(new Argument(ArgumentKind.EXTRA,
+                            Extras.getExtraExpression("intent", parameter, elements, types)));
+                    continue;
+                }
+
+                TypeMirror parameterType = parameter.asType();
+                if (types.isSameType(intentType, parameterType)) {
+                    arguments.add(new Argument(ArgumentKind.INTENT, null));
+                } else if (INT == parameterType.getKind()) {
+                    arguments.add(new Argument(ArgumentKind.ACTION_INDEX, null));
+                } else if (types.isSameType(pendingResultType, parameterType)) {
+                    arguments.add(new Argument(ArgumentKind.PENDING_RESULT, null));
+                } else {
+                    arguments.add(new Argument(ArgumentKind.RECEIVER, null));
+                }
             }
 
-            // Do further validation on field candidates.
-            if (FIELD == member.getKind() && types.isAssignable(member.asType(), contextType)) {
-                return member.getSimpleName().toString();
+            callbacks.add(new Callback(method, arguments, isGoingAsync(method)));
+        }
+
+        return callbacks;
+    }
+
+    // Actions are checked once the receivers are known, so that errors are reported in the order
+    // in which receivers are generated.
+    private void validateActionsFor(List<Receiver> receivers) {
+
+        for (Receiver receiver : receivers) {
+            for (Callback callback : receiver.methods) {
+                if (0 >= callback.annotation.value().length) {
+                    printMethodValidationError(callback.element,
+                            "must specify at least one broadcast action in its annotation value");
+                }
             }
+        }
+    }
 
-            // Do further validation on method candidates.
-            if (METHOD == member.getKind()) {
-                ExecutableElement method = (ExecutableElement) member;
+    // Writes an intent filter constant per receiver: filters are built once per class,
+    // rather than on every registration.
+    private static void generateFiltersFor(List<Receiver> receivers,
+            CodeEmitter code,
+            String tabs) {
 
-                // Skip methods that don't return a Context,
-                // that are constructors,
-                // that have parameters,
-                // or that throw checked exceptions.
-                if (!types.isAssignable(method.getReturnType(), contextType)
-                        || CONSTRUCTOR == method.getKind()
-                        || !method.getParameters().isEmpty()
-                        || throwsCheckedExceptions(method, elements, types)) {
+        for (Receiver receiver : receivers) {
 
-                    continue;
+            List<String> actions = new ArrayList<>();
+            for (String action : receiver.actions) {
+                actions.add(format("\"%1$s\"", action));
+            }
+
+            code.emit("%1$sprivate static final IntentFilter %2$s "
+                            + "= createFilter(%3$s);\n",
+                    tabs, getFilterNameFor(receiver), join(actions, ", "));
+        }
+
+        code.emit("\n%1$sprivate static IntentFilter createFilter(String... actions) {\n"
+                        + "%1$s\tIntentFilter filter = new IntentFilter();\n"
+                        + "%1$s\tfor (String action : actions) {\n"
+                        + "%1$s\t\tfilter.addAction(action);\n"
+                        + "%1$s\t}\n"
+                        + "%1$s\treturn filter;\n"
+                        + "%1$s}\n\n",
+                tabs);
+    }
+
+    // Groups the annotated methods into the broadcast receivers serving them.
+    private List<Receiver> getReceiversFor(List<Callback> callbacks) {
+
+        Map<String, Receiver> receivers = new LinkedHashMap<>();
+
+        for (Callback callback : callbacks) {
+            OnReceiveBroadcast annotation = callback.annotation;
+
+            // Methods may only share a receiver if it's registered and unregistered
+            // in the same lifecycle methods, with the same scope, stickiness, sharing and
+            // deferral, and dispatches on the same thread. Asynchronous methods don't share it,
+            // since a broadcast can only be made asynchronous once.
+            String receiverName = isMultiplexed && !callback.isGoingAsync
+                    ? getReceiverNameFor(annotation.registerIn(), annotation.unregisterIn(),
+                            annotation.thread(), annotation.local(), annotation.sticky(),
+                            annotation.shared(), annotation.deferred())
+                    : getReceiverNameFor(callback.name);
+
+            Receiver receiver = receivers.get(receiverName);
+            if (null == receiver) {
+                receiver = new Receiver(receiverName, annotation.registerIn(),
+                        annotation.unregisterIn(), annotation.thread(), annotation.local(),
+                        annotation.sticky(), annotation.shared(), annotation.deferred());
+                receiver.priority = annotation.priority();
+                receivers.put(receiverName, receiver);
+            }
+
+            // A shared deferred registration is run as early as its most urgent method needs.
+            receiver.priority = Math.max(receiver.priority, annotation.priority());
+            receiver.methods.add(callback);
+            receiver.actions.addAll(Arrays.asList(annotation.value()));
+        }
+
+        return new ArrayList<>(receivers.values());
+    }
+
+    // Deferred registrations are kept alongside receivers, so that they can be cancelled.
+    private static void generateDeferredRegistrationFor(Receiver receiver,
+            CodeEmitter code,
+            String tabs) {
+
+        if (receiver.isDeferred) {
+            code.emit("%1$sRunnable %2$s;\n", tabs,
+                    getDeferredRegistrationFor(receiver));
+        }
+    }
+
+    // Coalescers are kept alongside receivers, so that pending deliveries can be cancelled.
+    private static void generateCoalescersFor(Receiver receiver, CodeEmitter code, String tabs) {
+
+        for (Callback method : receiver.methods) {
+            if (isCoalesced(method.annotation)) {
+                code.emit("%1$s%2$s %3$s;\n", tabs, COALESCER_QUALIFIED_NAME,
+                        getCoalescerNameFor(method));
+            }
+        }
+    }
+
+    // Cancels the pending deliveries of the receiver's callbacks, following its unregistration.
+    // The coalescers are kept, along with the receiver, for its next registration.
+    private static void writeCoalescerCancellation(CodeEmitter code,
+            String tabs,
+            String receiversInvocationPrefix,
+            Receiver receiver) {
+
+        for (Callback method : receiver.methods) {
+            if (isCoalesced(method.annotation)) {
+                code.emit("%1$s%2$s%3$s.cancel();\n", tabs,
+                        receiversInvocationPrefix, getCoalescerNameFor(method));
+            }
+        }
+    }
+
+    // Methods going async call goAsync(), either to run on a background thread, or to be passed
+    // the pending result of the broadcast.
+    private boolean isGoingAsync(ExecutableElement method) {
+        return method.getAnnotation(OnReceiveBroadcast.class).async() || hasPendingResult(method);
+    }
+
+    private boolean hasPendingResult(ExecutableElement method) {
+
+        TypeMirror pendingResultType = typeCache.getType(PENDING_RESULT_QUALIFIED_NAME);
+
+        for (VariableElement parameter : method.getParameters()) {
+            if (null == parameter.getAnnotation(Extra.class)
+                    && types.isSameType(pendingResultType, parameter.asType())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Broadcasts are dispatched on their action if several methods are delivered the same
+    // broadcasts, or if a method is passed the index of the action among several actions.
+    private static boolean isActionDispatched(List<Callback> methods, boolean isCoalescing) {
+
+        if (1 < methods.size()) {
+            return true;
+        }
+
+        Callback method = methods.get(0);
+        if (isCoalescing && isCoalesced(method.annotation)) {
+            return false;
+        }
+
+        for (Argument argument : method.arguments) {
+            if (ArgumentKind.ACTION_INDEX == argument.kind) {
+                return 1 < getActionsFor(method).size();
+            }
+        }
+
+        return false;
+    }
+
+    // The distinct actions of the method, in order of appearance.
+    private static List<String> getActionsFor(Callback method) {
+        return new ArrayList<>(new LinkedHashSet<>(Arrays.asList(method.annotation.value())));
+    }
+
+    private static boolean isAsync(Receiver receiver) {
+
+        for (Callback method : receiver.methods) {
+            if (method.annotation.async()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isReceiverPassedAsync(Receiver receiver) {
+
+        for (Callback method : receiver.methods) {
+            if (method.annotation.async()) {
+                for (Argument argument : method.arguments) {
+                    if (ArgumentKind.RECEIVER == argument.kind) {
+                        return true;
+                    }
                 }
+            }
+        }
+
+        return false;
+    }
 
-                return format("%1$s()", method.getSimpleName().toString());
+    private static boolean isCoalescedOnly(Receiver receiver) {
+
+        for (Callback method : receiver.methods) {
+            if (!isCoalesced(method.annotation)) {
+                return false;
             }
         }
 
-        // Nothing found in this class. Search parent class, if available.
-        Element parentClass = getParentClass(classElement, types);
-        return null == parentClass
-                ? null
-                : findContextAccessorElement(parentClass);
+        return true;
     }
 
-    private void printMethodValidationError(ExecutableElement methodElement, String errorFragment) {
+    private static boolean isCoalesced(OnReceiveBroadcast annotation) {
+        return 0 < annotation.debounce() || 0 < annotation.throttle();
+    }
 
-        messager.printMessage(ERROR,
-                format("Callback methods annotated with @%1$s %2$s: %3$s.%4$s",
-                        OnReceiveBroadcast.class.getSimpleName(),
-                        errorFragment,
-                        getFullyQualifiedName(methodElement.getEnclosingElement(), elements),
-                        methodElement.getSimpleName().toString()));
+    private static String getCoalescerNameFor(Callback method) {
+        return format("%1$sCoalescer", method.name);
+    }
+
+    private static void addLifecycleMethod(Map<String, List<Receiver>> lifecycleMap,
+            String lifecycleMethodName,
+            Receiver receiver) {
+
+        List<Receiver> receivers = lifecycleMap.get(lifecycleMethodName);
+        if (null == receivers) {
+            receivers = new ArrayList<>();
+            lifecycleMap.put(lifecycleMethodName, receivers);
+        }
+        receivers.add(receiver);
     }
 
-    private static String getReceiverNameFor(Element methodElement) {
-        return getReceiverNameFor(methodElement.getSimpleName().toString());
+    // Nested classes are named after their enclosing classes, e.g. Outer_Inner_ReceiverBinder.
+    private String getBinderNameFor(TypeElement classElement) {
+
+        String binaryName = elements.getBinaryName(classElement).toString();
+        String simpleBinaryName = binaryName.substring(binaryName.lastIndexOf('.') + 1);
+
+        return format("%s_ReceiverBinder", simpleBinaryName.replace('$', '_'));
     }
 
     private static String getReceiverNameFor(String methodName) {
         return format("%1$sReceiver", methodName);
     }
 
+    // Filters are named after their receiver, e.g. ON_LOW_BATTERY_FILTER for onLowBatteryReceiver.
+    private static String getFilterNameFor(Receiver receiver) {
+
+        String baseName = receiver.name.substring(0, receiver.name.length() - "Receiver".length());
+        return format("%1$s_FILTER", baseName.replaceAll("([a-z0-9])([A-Z])", "$1_$2")
+                .toUpperCase());
+    }
+
+    private static String getRegisteredFlagFor(Receiver receiver) {
+        return format("is%1$sRegistered", capitalize(receiver.name));
+    }
+
+    // Metrics are named after the class declaring the receiver's first method, and the receiver,
+    // e.g. com.example.MainActivity.onLowBatteryReceiver.
+    // Metered receivers keep track of their current registration.
+    private String getReceiverType() {
+        return isMetered ? METERED_RECEIVER_QUALIFIED_NAME : "BroadcastReceiver";
+    }
+
+    private static String getMetricNameFor(Receiver receiver) {
+
+        return format("\"%1$s.%2$s\"", receiver.methods.get(0).declaringClassName,
+                receiver.name);
+    }
+
+    // Pending deferred registrations are named after their receiver,
+    // e.g. onLowBatteryReceiverRegistration.
+    private static String getDeferredRegistrationFor(Receiver receiver) {
+        return format("%1$sRegistration", receiver.name);
+    }
+
+    // Multiplexed receivers are named after their lifecycle methods, thread, scope, stickiness,
+    // sharing and deferral, e.g. onStartOnStopReceiver, onStartOnStopNetworkReceiver for the
+    // "network" thread, onStartOnStopLocalReceiver for local receivers,
+    // or onStartOnStopStickyReceiver.
+    private static String getReceiverNameFor(String registerIn,
+            String unregisterIn,
+            String thread,
+            boolean isLocal,
+            boolean isSticky,
+            boolean isShared,
+            boolean isDeferred) {
+
+        return format("%1$s%2$s%3$s%4$s%5$s%6$s%7$sReceiver", registerIn,
+                capitalize(unregisterIn), capitalize(thread.replaceAll("[^A-Za-z0-9_$]", "")),
+                isLocal ? "Local" : "", isSticky ? "Sticky" : "", isShared ? "Shared" : "",
+                isDeferred ? "Deferred" : "");
+    }
+
+    // Sticky receivers are delivered the sticky intent returned by their registration.
+    private static String getRegistrationCode(Receiver receiver,
+            String contextVar,
+            String receiverVar) {
+
+        String registration = getReceiverRegistrationCode(receiver, contextVar, receiverVar);
+        return receiver.isSticky
+                ? getStickyDeliveryCode(receiver, contextVar, receiverVar, registration)
+                : registration;
+    }
+
+    // Local receivers are registered with the in-process dispatcher rather than the context,
+    // and shared receivers with the process-wide hub.
+    private static String getReceiverRegistrationCode(Receiver receiver,
+            String contextVar,
+            String receiverVar) {
+
+        String handler = getHandlerCode(receiver);
+        String handlerArgument = handler.isEmpty() ? "" : ", " + handler;
+
+        if (receiver.isLocal) {
+            return format("%1$s.register(%2$s, %3$s%4$s)", LOCAL_BROADCASTS_QUALIFIED_NAME,
+                    receiverVar, getFilterNameFor(receiver), handlerArgument);
+        }
+
+        String context = null == contextVar || contextVar.isEmpty() ? "this" : contextVar;
+
+        return receiver.isShared
+                ? format("%1$s.register(%2$s, %3$s, %4$s%5$s)", SHARED_RECEIVERS_QUALIFIED_NAME,
+                        context, receiverVar, getFilterNameFor(receiver), handlerArgument)
+                : format("%1$sregisterReceiver(%2$s, %3$s%4$s)",
+                        getVariableInvocationPrefix(contextVar), receiverVar,
+                        getFilterNameFor(receiver),
+                        handler.isEmpty() ? "" : ", null" + handlerArgument);
+    }
+
+    private static String getStickyDeliveryCode(Receiver receiver,
+            String contextVar,
+            String receiverVar,
+            String stickyIntent) {
+
+        String context = null == contextVar || contextVar.isEmpty() ? "this" : contextVar;
+        String handler = getHandlerCode(receiver);
+
+        return format("%1$s.deliver(%2$s, %3$s, %4$s, %5$s)", STICKY_BROADCASTS_QUALIFIED_NAME,
+                context, receiverVar, stickyIntent, handler.isEmpty() ? "null" : handler);
+    }
+
+    // Receivers dispatch on the main thread unless a thread is specified.
+    private static String getHandlerCode(Receiver receiver) {
+        return receiver.thread.isEmpty()
+                ? ""
+                : format("%1$s.getHandler(\"%2$s\")", DISPATCH_THREADS_QUALIFIED_NAME,
+                        receiver.thread);
+    }
+
+    private static String getUnregistrationCode(Receiver receiver,
+            String contextVar,
+            String receiverVar) {
+
+        if (receiver.isShared) {
+            return format("%1$s.unregister(%2$s)", SHARED_RECEIVERS_QUALIFIED_NAME, receiverVar);
+        }
+
+        return receiver.isLocal
+                ? format("%1$s.unregister(%2$s)", LOCAL_BROADCASTS_QUALIFIED_NAME, receiverVar)
+                : format("%1$sunregisterReceiver(%2$s)", getVariableInvocationPrefix(contextVar),
+                        receiverVar);
+    }
+
+    private static String capitalize(String name) {
+        return name.isEmpty() ? name : name.substring(0, 1).toUpperCase() + name.substring(1);
+    }
+
     private static String getVariableInvocationPrefix(String variable) {
         return null == variable || 0 >= variable.length() ? "" : variable + ".";
     }
 
-    private static class UnprocessedAutoLogic {
+    // Returns the expression evaluating to the context of the class variable,
+    // or null if the context is the enclosing instance.
+    private static String getContextExpression(String classVar, String contextAccessor) {
+        return null == contextAccessor || 0 >= contextAccessor.length()
+                ? classVar
+                : getVariableInvocationPrefix(classVar) + contextAccessor;
+    }
+
+    // A generated broadcast receiver, serving one or more annotated methods.
+    private static class Receiver {
+
+        final String name;
+        final String registerIn;
+        final String unregisterIn;
+        final String thread;
+        final boolean isLocal;
+        final boolean isSticky;
+        final boolean isShared;
+        final boolean isDeferred;
+        final List<Callback> methods;
+        final Set<String> actions;
+
+        int priority;
+
+        Receiver(String name,
+                String registerIn,
+                String unregisterIn,
+                String thread,
+                boolean isLocal,
+                boolean isSticky,
+                boolean isShared,
+                boolean isDeferred) {
+
+            this.name = name;
+            this.registerIn = registerIn;
+            this.unregisterIn = unregisterIn;
+            this.thread = thread;
+            this.isLocal = isLocal;
+            this.isSticky = isSticky;
+            this.isShared = isShared;
+            this.isDeferred = isDeferred;
+            methods = new ArrayList<>();
+            actions = new LinkedHashSet<>();
+        }
+    }
+
+    /**
+     * The code generated for an annotated class, built from its elements on the processor
+     * thread. Once built, a model doesn't access elements, so that models can be rendered
+     * concurrently.
+     */
+    public abstract static class ClassModel {
+
+        // Only passed to the filer, as the originating element of the generated files.
+        final TypeElement originatingElement;
+        final String packageName;
+
+        ClassModel(TypeElement originatingElement, String packageName) {
+            this.originatingElement = originatingElement;
+            this.packageName = packageName;
+        }
+
+        abstract List<GeneratedFile> render(CodeEmitter code);
+    }
+
+    // An aspect and its index.
+    private class AspectModel extends ClassModel {
+
+        final String className;
+        final String aspectName;
+        final String targetBinaryName;
+        final List<Callback> callbacks = new ArrayList<>();
+        final List<Receiver> receivers = new ArrayList<>();
+        final List<AutoLogic> overrides = new ArrayList<>();
+        final List<AutoLogic> advice = new ArrayList<>();
+
+        String injectedClassName;
+        String parentClassName;
+
+        AspectModel(TypeElement originatingElement,
+                String packageName,
+                String className,
+                String aspectName,
+                String targetBinaryName) {
+
+            super(originatingElement, packageName);
+            this.className = className;
+            this.aspectName = aspectName;
+            this.targetBinaryName = targetBinaryName;
+        }
+
+        @Override
+        List<GeneratedFile> render(CodeEmitter code) {
+
+            renderAspect(this, code.reset());
+            GeneratedFile aspectFile = new GeneratedFile(originatingElement, packageName,
+                    format("%s.aj", aspectName), false, code.toString());
+
+            renderIndex(this, code.reset());
+            GeneratedFile indexFile = new GeneratedFile(originatingElement, packageName,
+                    format("%s.index", aspectName), false, code.toString());
+
+            return Arrays.asList(aspectFile, indexFile);
+        }
+    }
+
+    // A binder and its hooks.
+    private class BinderModel extends ClassModel {
+
+        final String binderName;
+        final String targetName;
+        final String targetBinaryName;
+        final List<Receiver> receivers = new ArrayList<>();
+        final Map<String, List<Receiver>> registrationMap = new LinkedHashMap<>();
+        final Map<String, List<Receiver>> unregistrationMap = new LinkedHashMap<>();
+        final Set<String> lifecycleMethodNames = new LinkedHashSet<>();
+        final Map<String, LifecycleMethod> lifecycleMethods = new LinkedHashMap<>();
+
+        String contextAccessor;
+
+        BinderModel(TypeElement originatingElement,
+                String packageName,
+                String binderName,
+                String targetName,
+                String targetBinaryName) {
+
+            super(originatingElement, packageName);
+            this.binderName = binderName;
+            this.targetName = targetName;
+            this.targetBinaryName = targetBinaryName;
+        }
+
+        @Override
+        List<GeneratedFile> render(CodeEmitter code) {
+
+            renderBinder(this, code.reset());
+            GeneratedFile binderFile = new GeneratedFile(originatingElement, packageName,
+                    binderName, true, code.toString());
+
+            renderHooks(this, code.reset());
+            GeneratedFile hooksFile = new GeneratedFile(originatingElement, packageName,
+                    format("%s.hooks", binderName), false, code.toString());
+
+            return Arrays.asList(binderFile, hooksFile);
+        }
+    }
+
+    // An annotated method. Its element is only accessed while building the model: callbacks are
+    // rendered from the values resolved from it, and from its annotation, which is immutable.
+    private static class Callback {
+
+        final ExecutableElement element;
+        final OnReceiveBroadcast annotation;
+        final String name;
+        final String declaringClassName;
+        final List<Modifier> modifiers;
+        final String parameters;
+        final List<Argument> arguments;
+        final boolean isGoingAsync;
+
+        Callback(ExecutableElement element, List<Argument> arguments, boolean isGoingAsync) {
+
+            this.element = element;
+            annotation = element.getAnnotation(OnReceiveBroadcast.class);
+            name = element.getSimpleName().toString();
+            declaringClassName = ((TypeElement) element.getEnclosingElement()).getQualifiedName()
+                    .toString();
+            modifiers = new ArrayList<>(element.getModifiers());
+            parameters = stringifyParameters(element);
+            this.arguments = arguments;
+            this.isGoingAsync = isGoingAsync;
+        }
+    }
+
+    // The values passed to the parameters of a callback.
+    private enum ArgumentKind {
+        INTENT,
+        ACTION_INDEX,
+        PENDING_RESULT,
+        RECEIVER,
+        EXTRA
+    }
+
+    // An argument of a callback. Extras are read from the intent by their expression.
+    private static class Argument {
+
+        final ArgumentKind kind;
+        final String expression;
+
+        Argument(ArgumentKind kind, String expression) {
+            this.kind = kind;
+            this.expression = expression;
+        }
+    }
+
+    // A lifecycle method in which receivers are registered or unregistered.
+    private static class LifecycleMethod {
+
+        final String name;
+        final List<Modifier> modifiers;
+        final String returnType;
+        final boolean hasReturn;
+        final String parameters;
+        final String argumentNames;
+        final String declaringType;
+        final String declaringName;
+        final String descriptor;
+
+        LifecycleMethod(ExecutableElement method, String descriptor) {
+
+            Element classElement = method.getEnclosingElement();
+
+            name = method.getSimpleName().toString();
+            modifiers = new ArrayList<>(method.getModifiers());
+            returnType = stringifyReturnType(method);
+            hasReturn = VOID != method.getReturnType().getKind();
+            parameters = stringifyParameters(method);
+            argumentNames = join(method.getParameters(), ", ");
+            declaringType = classElement.asType().toString();
+            declaringName = classElement.getSimpleName().toString();
+            this.descriptor = descriptor;
+        }
+    }
+
+    // The receivers registered or unregistered in a lifecycle method, either by its override in
+    // the intermediate class, or by advice.
+    private static class AutoLogic {
 
-        Map<ExecutableElement, List<ExecutableElement>> registrationMap;
-        Map<ExecutableElement, List<ExecutableElement>> unregistrationMap;
+        final LifecycleMethod method;
+        final String contextExpression;
+        final CodeWriter codeWriter;
 
-        UnprocessedAutoLogic() {
-            registrationMap = new HashMap<>();
-            unregistrationMap = new HashMap<>();
+        AutoLogic(LifecycleMethod method, String contextExpression, CodeWriter codeWriter) {
+            this.method = method;
+            this.contextExpression = contextExpression;
+            this.codeWriter = codeWriter;
         }
     }
 
     private interface CodeWriter {
 
-        void writeCode(Writer writer, String tabs, String contextVar, String classVar)
-                throws IOException;
+        /**
+         * Write the code.
+         *
+         * @param code the emitter to which the code is emitted.
+         * @param tabs the indentation of the code.
+         * @param contextVar the expression evaluating to the context with which receivers are
+         * registered.
+         * @param classVar the variable referencing the instance whose callbacks are invoked.
+         * @param receiversVar the variable referencing the instance holding the receivers.
+         */
+        void writeCode(CodeEmitter code,
+                String tabs,
+                String contextVar,
+                String classVar,
+                String receiversVar);
     }
 
     private class RegistrationCodeWriter implements CodeWriter {
 
-        private List<ExecutableElement> methods;
-
-        private RegistrationCodeWriter(List<ExecutableElement> methods) {
-            this.methods = methods;
+        private List<Receiver> receivers;
+        private String targetType;
+
+        /**
+         * Create a code registering the specified receivers. Receivers are created whenever
+         * they are registered, unless they are registered already, and flagged as registered.
+         *
+         * @param receivers the receivers to be registered.
+         * @param targetType the type of the instance whose callbacks are invoked, which the
+         * receivers reference weakly.
+         */
+        private RegistrationCodeWriter(List<Receiver> receivers, String targetType) {
+            this.receivers = receivers;
+            this.targetType = targetType;
         }
 
         @Override
-        public void writeCode(Writer writer, String tabs, String contextVar, String classVar)
-                throws IOException {
+        public void writeCode(CodeEmitter code,
+                String tabs,
+                String contextVar,
+                String classVar,
+                String receiversVar) {
+
+            for (Receiver receiver : receivers) {
+                if (receiver.isDeferred) {
+                    writeDeferredRegistration(code, tabs, contextVar, classVar, receiversVar,
+                            receiver);
+                } else {
+                    writeRegistration(code, tabs, contextVar, classVar, receiversVar, receiver);
+                }
+            }
+        }
 
-            final TypeMirror intentType = elements.getTypeElement(INTENT_QUALIFIED_NAME).asType();
-            final TypeMirror receiverType = elements.getTypeElement(
-                    BROADCAST_RECEIVER_QUALIFIED_NAME).asType();
+        // Writes the enqueuing of the registration, unless registered or enqueued already.
+        // The receivers created by the registration reference it, so it only references the
+        // target and the context weakly, and doesn't register the receiver once they're gone.
+        private void writeDeferredRegistration(CodeEmitter code,
+                String tabs,
+                String contextVar,
+                String classVar,
+                String receiversVar,
+                Receiver receiver) {
+
+            String receiversInvocationPrefix = getVariableInvocationPrefix(receiversVar);
+            String deferredRegistration = receiversInvocationPrefix
+                    + getDeferredRegistrationFor(receiver);
+            String blockTabs = tabs + "\t";
+            String runTabs = blockTabs + "\t\t";
+
+            final String deferredClassVar = "deferredTarget";
+            boolean isContextTarget = classVar.equals(contextVar);
+            String deferredContextVar = isContextTarget ? deferredClassVar : "deferredContext";
+            String deferredReceiversVar = classVar.equals(receiversVar)
+                    ? deferredClassVar
+                    : receiversVar;
+
+            code.emit("%1$sif (!%2$s%3$s && null == %4$s) {\n"
+                            + "%5$sfinal %6$s<%7$s> %8$sReference = new %6$s<>(%9$s);\n",
+                    tabs,
+                    receiversInvocationPrefix,
+                    getRegisteredFlagFor(receiver),
+                    deferredRegistration,
+                    blockTabs,
+                    WEAK_REFERENCE_QUALIFIED_NAME,
+                    targetType,
+                    deferredClassVar,
+                    classVar);
+
+            if (!isContextTarget) {
+                code.emit("%1$sfinal %2$s<Context> %3$sReference = new %2$s<>(%4$s);\n",
+                        blockTabs, WEAK_REFERENCE_QUALIFIED_NAME, deferredContextVar,
+                        contextVar);
+            }
 
-            writer.write(format("%1$sIntentFilter filter;\n\n", tabs));
+            code.emit("%1$s%2$s = %3$s.enqueue(%4$d, new Runnable() {\n"
+                            + "%1$s\t@Override\n"
+                            + "%1$s\tpublic void run() {\n"
+                            + "%5$sfinal %6$s %7$s = %7$sReference.get();\n",
+                    blockTabs,
+                    deferredRegistration,
+                    DEFERRED_REGISTRATIONS_QUALIFIED_NAME,
+                    receiver.priority,
+                    runTabs,
+                    targetType,
+                    deferredClassVar);
+
+            if (!isContextTarget) {
+                code.emit("%1$sfinal Context %2$s = %2$sReference.get();\n", runTabs,
+                        deferredContextVar);
+            }
 
-            for (ExecutableElement method : methods) {
-                String methodName = method.getSimpleName().toString();
-                String receiverName = getReceiverNameFor(methodName);
+            code.emit("%1$sif (null == %2$s%3$s) {\n"
+                            + "%1$s\treturn;\n"
+                            + "%1$s}\n\n"
+                            + "%1$s%4$s%5$s = null;\n\n",
+                    runTabs,
+                    deferredClassVar,
+                    isContextTarget ? "" : format(" || null == %s", deferredContextVar),
+                    getVariableInvocationPrefix(deferredReceiversVar),
+                    getDeferredRegistrationFor(receiver));
 
-                // Arguments for the callback.
-                List<String> args = new ArrayList<>();
-                for (VariableElement parameter : method.getParameters()) {
+            writeRegistration(code, runTabs, deferredContextVar, deferredClassVar,
+                    deferredReceiversVar, receiver);
 
-                    TypeMirror parameterType = parameter.asType();
-                    if (types.isSameType(intentType, parameterType)) {
-                        args.add("intent");
-                    } else if (types.isSameType(receiverType, parameterType)) {
-                        args.add("this");
-                    } else {
-                        printMethodValidationError(method, format(
-                                "cannot have parameter %1$s %2$s",
-                                parameterType,
-                                parameter.getSimpleName()));
-                    }
+            code.emit("%1$s\t}\n%1$s});\n%2$s}\n\n", blockTabs, tabs);
+        }
+
+        // Writes the creation and registration of the receiver, unless registered already.
+        private void writeRegistration(CodeEmitter code,
+                String tabs,
+                String contextVar,
+                String classVar,
+                String receiversVar,
+                Receiver receiver) {
+
+            String receiversInvocationPrefix = getVariableInvocationPrefix(receiversVar);
+            String receiverField = receiversInvocationPrefix + receiver.name;
+            String blockTabs = tabs + "\t";
+            String createTabs = blockTabs + "\t";
+
+            // Broadcast receiver definition, unless registered already. The receiver is only
+            // created on its first registration, and reused afterwards. It only references the
+            // target weakly, so that it isn't leaked if left registered.
+            code.emit("%1$sif (!%2$s%3$s) {\n"
+                            + "%4$sif (null == %5$s) {\n"
+                            + "%6$sfinal %7$s<%8$s> targetReference = "
+                            + "new %7$s<>(%9$s);\n",
+                    tabs,
+                    receiversInvocationPrefix,
+                    getRegisteredFlagFor(receiver),
+                    blockTabs,
+                    receiverField,
+                    createTabs,
+                    WEAK_REFERENCE_QUALIFIED_NAME,
+                    targetType,
+                    classVar);
+
+            for (Callback method : receiver.methods) {
+                if (isCoalesced(method.annotation)) {
+                    writeCoalescer(code, createTabs, classVar, receiversInvocationPrefix,
+                            method);
                 }
+            }
+
+            code.emit("%1$s%2$s = new %3$s() {\n", createTabs, receiverField,
+                    getReceiverType());
+
+            // The intent is referenced from the background thread of async methods.
+            code.emit("%1$s@Override\n"
+                            + "%1$spublic void onReceive(Context context, "
+                            + "%2$sIntent intent) {\n",
+                    createTabs + "\t",
+                    isAsync(receiver) ? "final " : "");
+
+            String receiveTabs = createTabs + "\t\t";
+
+            // The sticky intent was delivered on registration already.
+            if (receiver.isSticky) {
+                code.emit("%1$sif (%2$s.isRedelivery(this, intent)) {\n"
+                                + "%1$s\treturn;\n"
+                                + "%1$s}\n\n",
+                        receiveTabs,
+                        STICKY_BROADCASTS_QUALIFIED_NAME);
+            }
+
+            if (isMetered) {
+                writeDeliveryMetricsStart(code, receiveTabs, receiver);
+                receiveTabs += "\t";
+            }
 
-                String classInvocationPrefix = getVariableInvocationPrefix(classVar);
+            // Coalescers resolve the target once their delay has elapsed.
+            if (!isCoalescedOnly(receiver)) {
+                writeTargetResolution(code, receiveTabs, classVar);
+            }
 
-                // Broadcast receiver definition.
-                writer.write(format("%1$s%2$s%3$s = new BroadcastReceiver() {\n", tabs,
-                        classInvocationPrefix, receiverName));
-                writer.write(format("%1$s@Override\n"
-                                + "%1$spublic void onReceive(Context context, Intent intent) {\n"
-                                + "%1$s\t%2$s%3$s(%4$s);\n"
+            // The receiver is referenced from the background thread of async methods taking it.
+            if (isReceiverPassedAsync(receiver)) {
+                code.emit("%1$sfinal BroadcastReceiver receiver = this;\n",
+                        receiveTabs);
+            }
+
+            if (isActionDispatched(receiver.methods, true)) {
+                writeActionDispatch(code, receiveTabs, classVar, "receiver",
+                        receiver.methods, true);
+            } else {
+                writeDelivery(code, receiveTabs, classVar, "receiver",
+                        receiver.methods.get(0), 0);
+            }
+
+            if (isMetered) {
+                code.emit("%1$s} finally {\n"
+                                + "%1$s\t%2$s.onDelivered(%3$s, intent, deliveryTime);\n"
                                 + "%1$s}\n",
+                        createTabs + "\t\t",
+                        RECEIVER_METRICS_QUALIFIED_NAME,
+                        getMetricNameFor(receiver));
+            }
 
-                        tabs + "\t",
-                        classInvocationPrefix,
-                        methodName,
-                        join(args, ", ")));
-                writer.write(format("%1$s};\n\n", tabs));
+            code.emit("%1$s}\n", createTabs + "\t");
+            code.emit("%1$s};\n", createTabs);
+            code.emit("%1$s}\n\n", blockTabs);
 
-                // Intent filter actions.
-                String[] broadcastActions = method.getAnnotation(OnReceiveBroadcast.class).value();
-                if (0 >= broadcastActions.length) {
-                    printMethodValidationError(method,
-                            "must specify at least one broadcast action in its annotation value");
+            // Register broadcast receiver, dispatching on the main thread unless specified.
+            if (isMetered) {
+                writeMeteredRegistration(code, blockTabs, contextVar, receiverField, receiver);
+            } else {
+                code.emit("%1$s%2$s;\n", blockTabs, getRegistrationCode(receiver,
+                        contextVar, receiverField));
+            }
+
+            code.emit("%1$s%2$s%3$s = true;\n"
+                            + "%1$s%4$s.onRegistered(%5$s, %6$s);\n",
+                    blockTabs,
+                    receiversInvocationPrefix,
+                    getRegisteredFlagFor(receiver),
+                    LEAK_DETECTOR_QUALIFIED_NAME,
+                    classVar,
+                    receiverField);
+
+            code.emit("%1$s}\n\n", tabs);
+        }
+
+        // Writes the reporting of the first broadcast received since the registration, and opens
+        // the block whose duration is reported as the time spent delivering the broadcast.
+        private void writeDeliveryMetricsStart(CodeEmitter code, String tabs, Receiver receiver) {
+
+            code.emit("%1$sfinal long deliveryTime = System.nanoTime();\n"
+                            + "%1$sif (!isDelivered) {\n"
+                            + "%1$s\tisDelivered = true;\n"
+                            + "%1$s\t%2$s.onFirstDelivered(%3$s, registrationTime, deliveryTime);\n"
+                            + "%1$s}\n\n"
+                            + "%1$stry {\n",
+                    tabs,
+                    RECEIVER_METRICS_QUALIFIED_NAME,
+                    getMetricNameFor(receiver));
+        }
+
+        // Writes the registration of the receiver, reporting its duration. The sticky intent is
+        // delivered once the registration is reported, so that it isn't accounted for as such.
+        private void writeMeteredRegistration(CodeEmitter code,
+                String tabs,
+                String contextVar,
+                String receiverField,
+                Receiver receiver) {
+
+            String registration = getReceiverRegistrationCode(receiver, contextVar,
+                    receiverField);
+
+            // The time to the first broadcast is measured from the start of each registration,
+            // recorded beforehand as the receiver may be invoked right away on another thread.
+            code.emit("%1$sfinal long registrationStart = System.nanoTime();\n"
+                            + "%1$s%6$s.onRegistration(registrationStart);\n"
+                            + "%1$s%2$s%3$s;\n"
+                            + "%1$s%4$s.onRegistered(%5$s, registrationStart);\n",
+                    tabs,
+                    receiver.isSticky ? "final Intent stickyIntent = " : "",
+                    registration,
+                    RECEIVER_METRICS_QUALIFIED_NAME,
+                    getMetricNameFor(receiver),
+                    receiverField);
+
+            if (receiver.isSticky) {
+                code.emit("%1$s%2$s;\n", tabs, getStickyDeliveryCode(receiver,
+                        contextVar, receiverField, "stickyIntent"));
+            }
+        }
+
+        // Writes the creation of the coalescer through which broadcasts are delivered to the
+        // callback, before the creation of the receiver. The receiver references the coalescer
+        // through a local variable, rather than through the instance holding it.
+        private void writeCoalescer(CodeEmitter code,
+                String tabs,
+                String classVar,
+                String receiversInvocationPrefix,
+                Callback method) {
+
+            OnReceiveBroadcast annotation = method.annotation;
+            boolean isThrottled = 0 < annotation.throttle();
+
+            code.emit("%1$sfinal %2$s %3$s = %2$s.%4$s(%5$dL,\n"
+                            + "%1$s\t\tnew %2$s.Callback() {\n"
+                            + "%1$s\t\t\t@Override\n"
+                            + "%1$s\t\t\tpublic void onReceive(BroadcastReceiver receiver, "
+                            + "Intent intent) {\n",
+                    tabs,
+                    COALESCER_QUALIFIED_NAME,
+                    getCoalescerNameFor(method),
+                    isThrottled ? "throttle" : "debounce",
+                    isThrottled ? annotation.throttle() : annotation.debounce());
+
+            writeTargetResolution(code, tabs + "\t\t\t\t", classVar);
+
+            // Coalesced intents may still need to be dispatched on their action.
+            List<Callback> methods = Collections.singletonList(method);
+            if (isActionDispatched(methods, false)) {
+                writeActionDispatch(code, tabs + "\t\t\t\t", classVar, "receiver", methods,
+                        false);
+            } else {
+                writeCallback(code, tabs + "\t\t\t\t", classVar, "receiver", method, 0);
+            }
+
+            code.emit("%1$s\t\t\t}\n%1$s\t\t});\n", tabs);
+            code.emit("%1$s%2$s%3$s = %3$s;\n", tabs, receiversInvocationPrefix,
+                    getCoalescerNameFor(method));
+        }
+
+        // Writes the resolution of the weakly referenced target, shadowing the variable
+        // referencing it in the enclosing method. Broadcasts are dropped once it was collected.
+        private void writeTargetResolution(CodeEmitter code, String tabs, String classVar) {
+
+            code.emit("%1$sfinal %2$s %3$s = targetReference.get();\n"
+                            + "%1$sif (null == %3$s) {\n"
+                            + "%1$s\treturn;\n"
+                            + "%1$s}\n\n",
+                    tabs,
+                    targetType,
+                    classVar);
+        }
+
+        // Writes a switch on the action of the broadcast, delivering it to the methods annotated
+        // with that action, so that the action is only compared once per broadcast. Actions whose
+        // deliveries are identical share a case.
+        private void writeActionDispatch(CodeEmitter code,
+                String tabs,
+                String classVar,
+                String receiverVar,
+                List<Callback> methods,
+                boolean isCoalescing) {
+
+            Set<String> actions = new LinkedHashSet<>();
+            for (Callback method : methods) {
+                actions.addAll(getActionsFor(method));
+            }
+
+            Map<String, List<String>> actionsByCase = new LinkedHashMap<>();
+            CodeEmitter caseCode = new CodeEmitter();
+            for (String action : actions) {
+
+                caseCode.reset();
+                for (Callback method : methods) {
+
+                    // The index of the action in the annotation's value is passed to the method.
+                    int actionIndex = Arrays.asList(method.annotation.value()).indexOf(action);
+                    if (0 > actionIndex) {
+                        continue;
+                    }
+
+                    if (isCoalescing) {
+                        writeDelivery(caseCode, tabs + "\t\t", classVar, receiverVar, method,
+                                actionIndex);
+                    } else {
+                        writeCallback(caseCode, tabs + "\t\t", classVar, receiverVar, method,
+                                actionIndex);
+                    }
                 }
 
-                writer.write(format("%1$sfilter = new IntentFilter();\n", tabs));
-                for (String action : broadcastActions) {
-                    writer.write(format("%1$sfilter.addAction(\"%2$s\");\n", tabs, action));
+                List<String> caseActions = actionsByCase.get(caseCode.toString());
+                if (null == caseActions) {
+                    caseActions = new ArrayList<>();
+                    actionsByCase.put(caseCode.toString(), caseActions);
                 }
+                caseActions.add(action);
+            }
 
-                // Register broadcast receiver.
-                writer.write(format("%1$s%2$s%3$sregisterReceiver(%2$s%4$s, filter);\n\n",
+            code.emit("%1$sString action = intent.getAction();\n"
+                            + "%1$sif (null == action) {\n"
+                            + "%1$s\treturn;\n"
+                            + "%1$s}\n\n"
+                            + "%1$sswitch (action) {\n",
+                    tabs);
+
+            for (Map.Entry<String, List<String>> entry : actionsByCase.entrySet()) {
+                for (String action : entry.getValue()) {
+                    code.emit("%1$s\tcase \"%2$s\":\n", tabs, action);
+                }
+                code.emit(entry.getKey());
+                code.emit("%1$s\t\tbreak;\n", tabs);
+            }
+
+            code.emit("%1$s}\n", tabs);
+        }
+
+        // Writes the delivery of a broadcast to the callback, directly, through its coalescer or
+        // on a background thread, from within the receiver's onReceive method. The receiver is
+        // referenced by the specified variable from the background thread.
+        private void writeDelivery(CodeEmitter code,
+                String tabs,
+                String classVar,
+                String receiverVar,
+                Callback method,
+                int actionIndex) {
+
+            if (isCoalesced(method.annotation)) {
+                code.emit("%1$s%2$s.submit(this, intent);\n", tabs,
+                        getCoalescerNameFor(method));
+
+            } else if (method.annotation.async()) {
+                code.emit("%1$s%2$s.runAsync(goAsync(), new Runnable() {\n"
+                                + "%1$s\t@Override\n"
+                                + "%1$s\tpublic void run() {\n",
                         tabs,
-                        classInvocationPrefix,
-                        getVariableInvocationPrefix(contextVar),
-                        receiverName));
+                        DISPATCH_THREADS_QUALIFIED_NAME);
+                writeCallback(code, tabs + "\t\t", classVar, receiverVar, method,
+                        actionIndex);
+                code.emit("%1$s\t}\n%1$s});\n", tabs);
+
+            } else {
+                writeCallback(code, tabs, classVar, "this", method, actionIndex);
             }
         }
+
+        // Writes the invocation of the callback. Parameters are validated beforehand.
+        private void writeCallback(CodeEmitter code,
+                String tabs,
+                String classVar,
+                String receiverVar,
+                Callback method,
+                int actionIndex) {
+
+            // Arguments for the callback.
+            List<String> args = new ArrayList<>();
+            for (Argument argument : method.arguments) {
+                switch (argument.kind) {
+                    case INTENT:
+                        args.add("intent");
+                        break;
+                    case ACTION_INDEX:
+                        args.add(String.valueOf(actionIndex));
+                        break;
+                    case PENDING_RESULT:
+                        args.add("goAsync()");
+                        break;
+                    case RECEIVER:
+                        args.add(receiverVar);
+                        break;
+                    default:
+                        args.add(argument.expression);
+                        break;
+                }
+            }
+
+            code.emit("%1$s%2$s%3$s(%4$s);\n",
+                    tabs,
+                    getVariableInvocationPrefix(classVar),
+                    method.name,
+                    join(args, ", "));
+        }
     }
 
+    // Unregisters only the receivers that are registered, so that unregistration can be
+    // requested regardless of the state of the target instance. Receivers are kept, so that
+    // they're reused on their next registration.
     private class UnregistrationCodeWriter implements CodeWriter {
 
-        private List<ExecutableElement> methods;
+        private List<Receiver> receivers;
 
-        private UnregistrationCodeWriter(List<ExecutableElement> methods) {
-            this.methods = methods;
+        private UnregistrationCodeWriter(List<Receiver> receivers) {
+            this.receivers = receivers;
         }
 
         @Override
-        public void writeCode(Writer writer, String tabs, String contextVar, String classVar)
-                throws IOException {
+        public void writeCode(CodeEmitter code,
+                String tabs,
+                String contextVar,
+                String classVar,
+                String receiversVar) {
+
+            String receiversInvocationPrefix = getVariableInvocationPrefix(receiversVar);
+
+            for (Receiver receiver : receivers) {
+                String receiverField = receiversInvocationPrefix + receiver.name;
+
+                // A deferred registration that didn't run yet is cancelled.
+                if (receiver.isDeferred) {
+                    code.emit("%1$sif (null != %2$s) {\n"
+                                    + "%1$s\t%3$s.cancel(%2$s);\n"
+                                    + "%1$s\t%2$s = null;\n"
+                                    + "%1$s}\n",
+                            tabs,
+                            receiversInvocationPrefix + getDeferredRegistrationFor(receiver),
+                            DEFERRED_REGISTRATIONS_QUALIFIED_NAME);
+                }
+
+                code.emit("%1$sif (%2$s%3$s) {\n", tabs, receiversInvocationPrefix,
+                        getRegisteredFlagFor(receiver));
+
+                if (isMetered) {
+                    code.emit("%1$s\tfinal long unregistrationStart = "
+                                    + "System.nanoTime();\n"
+                                    + "%1$s\t%2$s;\n"
+                                    + "%1$s\t%3$s.onUnregistered(%4$s, unregistrationStart);\n",
+                            tabs,
+                            getUnregistrationCode(receiver, contextVar, receiverField),
+                            RECEIVER_METRICS_QUALIFIED_NAME,
+                            getMetricNameFor(receiver));
+                } else {
+                    code.emit("%1$s\t%2$s;\n", tabs,
+                            getUnregistrationCode(receiver, contextVar, receiverField));
+                }
 
-            for (ExecutableElement method : methods) {
-                writer.write(format("%1$s%2$s%3$sunregisterReceiver(%2$s%4$s);\n",
+                writeCoalescerCancellation(code, tabs + "\t", receiversInvocationPrefix,
+                        receiver);
+                code.emit("%1$s\t%2$s.onUnregistered(%3$s);\n"
+                                + "%1$s\t%4$s%5$s = false;\n"
+                                + "%1$s}\n\n",
                         tabs,
-                        getVariableInvocationPrefix(classVar),
-                        getVariableInvocationPrefix(contextVar),
-                        getReceiverNameFor(method)));
+                        LEAK_DETECTOR_QUALIFIED_NAME,
+                        receiverField,
+                        receiversInvocationPrefix,
+                        getRegisteredFlagFor(receiver));
             }
         }
     }
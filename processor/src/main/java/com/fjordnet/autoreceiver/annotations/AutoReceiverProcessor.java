@@ -18,14 +18,18 @@ package com.fjordnet.autoreceiver.annotations;
 
 import com.google.auto.service.AutoService;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Filer;
@@ -38,17 +42,56 @@ import javax.lang.model.element.Element;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
+import javax.tools.FileObject;
 
 import static javax.lang.model.element.ElementKind.CLASS;
 import static javax.tools.Diagnostic.Kind.ERROR;
+import static javax.tools.Diagnostic.Kind.WARNING;
+import static javax.tools.StandardLocation.SOURCE_OUTPUT;
 
 @AutoService(Processor.class)
 public class AutoReceiverProcessor extends AbstractProcessor {
 
+    /**
+     * Processor option selecting the generated code: {@value #BACKEND_ASPECTJ} (default) for
+     * aspects woven by ajc, or {@value #BACKEND_BINDER} for plain Java binder classes.
+     */
+    public static final String OPTION_BACKEND = "autoreceiver.backend";
+
+    public static final String BACKEND_ASPECTJ = "aspectj";
+    public static final String BACKEND_BINDER = "binder";
+
+    /**
+     * Processor option serving all annotated methods of a class that are registered and
+     * unregistered in the same lifecycle methods with a single broadcast receiver when
+     * {@code true}, rather than a broadcast receiver per method (default).
+     */
+    public static final String OPTION_MULTIPLEX = "autoreceiver.multiplex";
+
+    /**
+     * Processor option reporting the metrics of generated broadcast receivers to
+     * {@code ReceiverMetrics} when {@code true}. By default, no instrumentation is generated.
+     */
+    public static final String OPTION_METRICS = "autoreceiver.metrics";
+
+    /**
+     * Processor option specifying the file to which a JSON report of the timings and counts of
+     * the processor's work is written once processing is over. A relative path is resolved
+     * against the directory of generated sources, so that build tools can pass a path that
+     * doesn't depend on the location of the project. By default, no report is written.
+     */
+    public static final String OPTION_REPORT = "autoreceiver.report";
+
     private Elements elementUtils;
     private Types typeUtils;
     private Filer filer;
     private Messager messager;
+    private boolean isBinderBackend;
+    private boolean isMultiplexed;
+    private boolean isMetered;
+    private String reportPath;
+    private ProcessorReport report;
+    private ForkJoinPool renderPool;
 
     @Override
     public synchronized void init(ProcessingEnvironment environment) {
@@ -58,14 +101,46 @@ public class AutoReceiverProcessor extends AbstractProcessor {
         typeUtils = environment.getTypeUtils();
         filer = environment.getFiler();
         messager = environment.getMessager();
+
+        String backend = environment.getOptions().get(OPTION_BACKEND);
+        isBinderBackend = BACKEND_BINDER.equals(backend);
+        if (null != backend && !isBinderBackend && !BACKEND_ASPECTJ.equals(backend)) {
+            messager.printMessage(ERROR, String.format("Unknown %s option value: %s",
+                    OPTION_BACKEND, backend));
+        }
+
+        isMultiplexed = Boolean.parseBoolean(environment.getOptions().get(OPTION_MULTIPLEX));
+        isMetered = Boolean.parseBoolean(environment.getOptions().get(OPTION_METRICS));
+
+        reportPath = environment.getOptions().get(OPTION_REPORT);
+        report = new ProcessorReport(isBinderBackend ? BACKEND_BINDER : BACKEND_ASPECTJ);
     }
 
     @Override
     public boolean process(Set<? extends TypeElement> elements, RoundEnvironment roundEnv) {
 
-        Map<Element, List<Element>> classMethodMap = new HashMap<>();
+        if (roundEnv.processingOver()) {
+            if (null != renderPool) {
+                renderPool.shutdown();
+            }
+            writeReport();
+            return false;
+        }
+
+        // Nothing to do in rounds that don't involve the supported annotation,
+        // e.g. the final round, or rounds processing other generated sources.
+        if (elements.isEmpty()) {
+            return false;
+        }
+
+        long startTime = System.nanoTime();
+
+        // Each class is processed in isolation: only the annotated methods enclosed by the class
+        // and its parent classes are used to generate its aspect.
+        Map<Element, List<Element>> classMethodMap = new LinkedHashMap<>();
         List<Element> methods;
         Element parent;
+        int methodCount = 0;
 
         for (Element method : roundEnv.getElementsAnnotatedWith(OnReceiveBroadcast.class)) {
 
@@ -79,26 +154,61 @@ public class AutoReceiverProcessor extends AbstractProcessor {
                 methods = new ArrayList<>();
             }
             methods.add(method);
+            methodCount++;
             classMethodMap.put(parent, methods);
         }
 
+        long scanTime = System.nanoTime() - startTime;
+
+        // Types and members resolved while generating the code of a class are reused by the
+        // following classes of the round.
+        TypeCache typeCache = new TypeCache(elementUtils, typeUtils, report);
         AspectGenerator aspectGenerator = new AspectGenerator(elementUtils, typeUtils, filer,
-                messager);
+                messager, isMultiplexed, isMetered, typeCache, report);
 
+        // Models are built on the processor thread, as elements and the messager aren't
+        // thread-safe. They are then rendered concurrently, and rendered files are written in
+        // order, as the filer isn't thread-safe either.
+        Map<Element, AspectGenerator.ClassModel> models = new LinkedHashMap<>();
         for (Element classElement : classMethodMap.keySet()) {
 
             try {
-                aspectGenerator.generateAspectFor(classElement, classMethodMap.get(classElement));
+                models.put(classElement, isBinderBackend
+                        ? aspectGenerator.buildBinderModelFor(classElement,
+                                classMethodMap.get(classElement))
+                        : aspectGenerator.buildAspectModelFor(classElement,
+                                classMethodMap.get(classElement)));
 
             } catch (Exception exception) {
+                printGenerationError(classElement, exception);
+            }
+        }
 
-                messager.printMessage(ERROR,
-                        String.format("Unable to write aspect for %s due to exception: %s\n%s",
-                                classElement.getSimpleName(), exception, getStackTrace(exception)),
-                        classElement);
+        Map<Element, ForkJoinTask<List<GeneratedFile>>> renderings = new LinkedHashMap<>();
+        for (Map.Entry<Element, AspectGenerator.ClassModel> entry : models.entrySet()) {
+            AspectGenerator.ClassModel model = entry.getValue();
+            renderings.put(entry.getKey(),
+                    getRenderPool().submit(() -> aspectGenerator.render(model)));
+        }
+
+        for (Map.Entry<Element, ForkJoinTask<List<GeneratedFile>>> entry
+                : renderings.entrySet()) {
+
+            try {
+                for (GeneratedFile file : entry.getValue().join()) {
+                    aspectGenerator.write(file);
+                }
+                report.addGenerated();
+
+            } catch (Exception exception) {
+                printGenerationError(entry.getKey(), exception);
             }
         }
 
+        long endTime = System.nanoTime();
+        report.addRound(classMethodMap.size(), methodCount, scanTime,
+                endTime - startTime - scanTime, endTime - startTime);
+
         return true;
     }
 
@@ -106,14 +216,74 @@ public class AutoReceiverProcessor extends AbstractProcessor {
     public Set<String> getSupportedAnnotationTypes() {
         Set<String> annotations = new LinkedHashSet<>();
         annotations.add(OnReceiveBroadcast.class.getCanonicalName());
+        annotations.add(Extra.class.getCanonicalName());
         return annotations;
     }
 
+    @Override
+    public Set<String> getSupportedOptions() {
+        Set<String> options = new LinkedHashSet<>();
+        options.add(OPTION_BACKEND);
+        options.add(OPTION_MULTIPLEX);
+        options.add(OPTION_METRICS);
+        options.add(OPTION_REPORT);
+        return options;
+    }
+
     @Override
     public SourceVersion getSupportedSourceVersion() {
         return SourceVersion.latestSupported();
     }
 
+    // The report is only informative: failing to write it doesn't fail the compilation.
+    private void writeReport() {
+
+        if (null == reportPath || reportPath.isEmpty()) {
+            return;
+        }
+
+        try {
+            report.write(getReportFile());
+        } catch (IOException | IllegalArgumentException exception) {
+            messager.printMessage(WARNING, String.format("Unable to write %s: %s", reportPath,
+                    exception));
+        }
+    }
+
+    // The directory of generated sources is looked up through the filer, without creating
+    // any file in it.
+    private File getReportFile() throws IOException {
+
+        File reportFile = new File(reportPath);
+        if (reportFile.isAbsolute()) {
+            return reportFile;
+        }
+
+        FileObject sourceOutput = filer.getResource(SOURCE_OUTPUT, "", reportFile.getName());
+        File sourceOutputDir = new File(sourceOutput.toUri()).getParentFile();
+        return new File(sourceOutputDir, reportPath);
+    }
+
+    private void printGenerationError(Element classElement, Exception exception) {
+
+        report.addError();
+        messager.printMessage(ERROR,
+                String.format("Unable to write %s for %s due to exception: %s\n%s",
+                        isBinderBackend ? "binder" : "aspect",
+                        classElement.getSimpleName(), exception, getStackTrace(exception)),
+                classElement);
+    }
+
+    // Rendering threads are only started once a round has classes to render.
+    private ForkJoinPool getRenderPool() {
+
+        if (null == renderPool) {
+            renderPool = new ForkJoinPool();
+        }
+
+        return renderPool;
+    }
+
     private String getStackTrace(Exception exception) {
         StringWriter stringWriter = new StringWriter();
         exception.printStackTrace(new PrintWriter(stringWriter, true));
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.annotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Renders generated code into a buffer, whose content is then written to the generated file with
+ * a single call. The buffer can be reused for the next file, but not shared between threads.
+ * </p><p>
+ * Code is emitted from templates using the positional ({@code %1$s}) and sequential
+ * ({@code %s}) conversions of {@link String#format(String, Object...)}, restricted to
+ * {@code s} and {@code d}, whose arguments are both rendered with {@link String#valueOf(Object)}.
+ * Each template is parsed once, the first time it's emitted, rather than on every call.
+ * </p>
+ */
+public class CodeEmitter {
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    // Templates are string literals, shared by all emitters.
+    private static final ConcurrentMap<String, Template> TEMPLATES = new ConcurrentHashMap<>();
+
+    private final StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+
+    /**
+     * Clear the buffer, keeping its capacity, so that the next file can be rendered.
+     *
+     * @return this emitter.
+     */
+    public CodeEmitter reset() {
+        buffer.setLength(0);
+        return this;
+    }
+
+    /**
+     * Emit the specified code as is.
+     *
+     * @param code the code to emit.
+     *
+     * @return this emitter.
+     */
+    public CodeEmitter emit(String code) {
+        buffer.append(code);
+        return this;
+    }
+
+    /**
+     * Emit the specified template, with its conversions replaced by the specified arguments.
+     *
+     * @param template the template to emit.
+     * @param args the arguments referenced by the conversions of the template.
+     *
+     * @return this emitter.
+     * @throws IllegalArgumentException if the template has unsupported conversions, or
+     * references missing arguments.
+     */
+    public CodeEmitter emit(String template, Object... args) {
+
+        Template compiled = TEMPLATES.get(template);
+        if (null == compiled) {
+            compiled = new Template(template);
+            TEMPLATES.putIfAbsent(template, compiled);
+        }
+
+        compiled.render(buffer, args);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+
+    // A template split into literal segments and argument indices.
+    private static class Template {
+
+        private final String template;
+        private final String[] literals;
+        private final int[] argIndices;
+
+        Template(String template) {
+
+            this.template = template;
+
+            List<String> literals = new ArrayList<>();
+            List<Integer> argIndices = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int sequentialIndex = 0;
+            int index = 0;
+
+            while (index < template.length()) {
+
+                char character = template.charAt(index++);
+                if ('%' != character) {
+                    literal.append(character);
+                    continue;
+                }
+
+                if (index < template.length() && '%' == template.charAt(index)) {
+                    literal.append('%');
+                    index++;
+                    continue;
+                }
+
+                // Positional conversions, e.g. %1$s, are 1-based.
+                int argIndex;
+                int digitsEnd = index;
+                while (digitsEnd < template.length()
+                        && Character.isDigit(template.charAt(digitsEnd))) {
+
+                    digitsEnd++;
+                }
+
+                if (digitsEnd > index && digitsEnd < template.length()
+                        && '$' == template.charAt(digitsEnd)) {
+
+                    argIndex = Integer.parseInt(template.substring(index, digitsEnd)) - 1;
+                    index = digitsEnd + 1;
+                } else {
+                    argIndex = sequentialIndex++;
+                }
+
+                char conversion = index < template.length() ? template.charAt(index) : 0;
+                if ('s' != conversion && 'd' != conversion) {
+                    throw new IllegalArgumentException(String.format(
+                            "Unsupported conversion at %d in template: %s", index, template));
+                }
+                index++;
+
+                literals.add(literal.toString());
+                argIndices.add(argIndex);
+                literal.setLength(0);
+            }
+
+            literals.add(literal.toString());
+
+            this.literals = literals.toArray(new String[literals.size()]);
+            this.argIndices = new int[argIndices.size()];
+            for (int argIndex = 0; argIndex < this.argIndices.length; argIndex++) {
+                this.argIndices[argIndex] = argIndices.get(argIndex);
+            }
+        }
+
+        void render(StringBuilder buffer, Object[] args) {
+
+            for (int index = 0; index < argIndices.length; index++) {
+
+                int argIndex = argIndices[index];
+                if (argIndex >= args.length) {
+                    throw new IllegalArgumentException(String.format(
+                            "Missing argument %d for template: %s", argIndex + 1, template));
+                }
+
+                buffer.append(literals[index]).append(String.valueOf(args[argIndex]));
+            }
+
+            buffer.append(literals[argIndices.length]);
+        }
+    }
+}
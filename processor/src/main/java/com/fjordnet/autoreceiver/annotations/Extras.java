@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.annotations;
+
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+import static java.lang.String.format;
+
+/**
+ * Generates the expressions reading the intent extras passed to parameters annotated with
+ * {@link Extra}.
+ */
+final class Extras {
+
+    private static final String BUNDLE_QUALIFIED_NAME = "android.os.Bundle";
+    private static final String PARCELABLE_QUALIFIED_NAME = "android.os.Parcelable";
+    private static final String SERIALIZABLE_QUALIFIED_NAME = "java.io.Serializable";
+    private static final String STRING_QUALIFIED_NAME = "java.lang.String";
+    private static final String CHAR_SEQUENCE_QUALIFIED_NAME = "java.lang.CharSequence";
+    private static final String INTEGER_QUALIFIED_NAME = "java.lang.Integer";
+    private static final String ARRAY_LIST_QUALIFIED_NAME = "java.util.ArrayList";
+
+    private Extras() {
+    }
+
+    /**
+     * Get the expression reading the extra passed to the specified parameter, using the accessor
+     * of the parameter's type so that primitive extras aren't boxed.
+     *
+     * @param intentVar the variable referencing the broadcast intent.
+     * @param parameter the parameter annotated with {@link Extra}.
+     * @param elements the element utilities of the processing environment.
+     * @param types the type utilities of the processing environment.
+     *
+     * @return the expression evaluating to the extra.
+     *
+     * @throws IllegalArgumentException if the type of the parameter isn't supported, or its
+     * default value isn't a valid literal of its type.
+     */
+    static String getExtraExpression(String intentVar,
+            VariableElement parameter,
+            Elements elements,
+            Types types) {
+
+        Extra extra = parameter.getAnnotation(Extra.class);
+        TypeMirror type = parameter.asType();
+
+        if (extra.value().isEmpty()) {
+            throw new IllegalArgumentException(format("cannot have extra parameter %1$s without "
+                    + "a name", parameter.getSimpleName()));
+        }
+
+        String name = format("\"%1$s\"", extra.value());
+
+        if (type.getKind().isPrimitive()) {
+            return format("%1$s.get%2$sExtra(%3$s, %4$s)", intentVar, getAccessorName(type),
+                    name, getDefaultLiteral(type, extra.defaultValue(), parameter));
+        }
+
+        if (!extra.defaultValue().isEmpty()) {
+            throw new IllegalArgumentException(format("cannot have a default value for extra "
+                    + "parameter %1$s of type %2$s", parameter.getSimpleName(), type));
+        }
+
+        String accessorName = null;
+
+        if (TypeKind.ARRAY == type.getKind()) {
+            TypeMirror componentType = ((ArrayType) type).getComponentType();
+            if (componentType.getKind().isPrimitive()) {
+                accessorName = getAccessorName(componentType) + "Array";
+            } else if (isType(componentType, STRING_QUALIFIED_NAME, elements, types)) {
+                accessorName = "StringArray";
+            } else if (isType(componentType, CHAR_SEQUENCE_QUALIFIED_NAME, elements, types)) {
+                accessorName = "CharSequenceArray";
+            } else if (isType(componentType, PARCELABLE_QUALIFIED_NAME, elements, types)) {
+                accessorName = "ParcelableArray";
+            }
+
+        } else if (isType(type, STRING_QUALIFIED_NAME, elements, types)) {
+            accessorName = "String";
+        } else if (isType(type, CHAR_SEQUENCE_QUALIFIED_NAME, elements, types)) {
+            accessorName = "CharSequence";
+        } else if (isType(type, BUNDLE_QUALIFIED_NAME, elements, types)) {
+            accessorName = "Bundle";
+        } else if (isArrayListOf(type, STRING_QUALIFIED_NAME, elements, types)) {
+            accessorName = "StringArrayList";
+        } else if (isArrayListOf(type, INTEGER_QUALIFIED_NAME, elements, types)) {
+            accessorName = "IntegerArrayList";
+
+        } else if (isSubtype(type, PARCELABLE_QUALIFIED_NAME, elements, types)) {
+            // The type is explicit, as it can't be inferred from an argument before Java 8.
+            return format("%1$s.<%2$s>getParcelableExtra(%3$s)", intentVar, type, name);
+
+        } else if (isSubtype(type, SERIALIZABLE_QUALIFIED_NAME, elements, types)) {
+            return format("(%1$s) %2$s.getSerializableExtra(%3$s)", type, intentVar, name);
+        }
+
+        if (null == accessorName) {
+            throw new IllegalArgumentException(format("cannot have extra parameter %1$s of "
+                    + "unsupported type %2$s", parameter.getSimpleName(), type));
+        }
+
+        return format("%1$s.get%2$sExtra(%3$s)", intentVar, accessorName, name);
+    }
+
+    // Accessors of primitive extras are named after their type, e.g. getIntExtra.
+    private static String getAccessorName(TypeMirror primitiveType) {
+        String typeName = primitiveType.getKind().name().toLowerCase();
+        return typeName.substring(0, 1).toUpperCase() + typeName.substring(1);
+    }
+
+    // Default values are decimal numbers, true or false, or a single character, rather than Java
+    // literals: they're parsed, then written as literals of the parameter's type.
+    private static String getDefaultLiteral(TypeMirror type,
+            String defaultValue,
+            VariableElement parameter) {
+
+        TypeKind kind = type.getKind();
+        String value = defaultValue.trim();
+
+        try {
+            switch (kind) {
+                case BOOLEAN:
+                    if (value.isEmpty()) {
+                        return "false";
+                    }
+                    if (!"true".equals(value) && !"false".equals(value)) {
+                        break;
+                    }
+                    return value;
+
+                case CHAR:
+                    if (defaultValue.isEmpty()) {
+                        return "'\\0'";
+                    }
+                    if (1 != defaultValue.length()) {
+                        break;
+                    }
+                    return format("(char) %1$d", (int) defaultValue.charAt(0));
+
+                case BYTE:
+                    return format("(byte) %1$d", value.isEmpty() ? 0 : Byte.parseByte(value));
+
+                case SHORT:
+                    return format("(short) %1$d", value.isEmpty() ? 0 : Short.parseShort(value));
+
+                case INT:
+                    return String.valueOf(value.isEmpty() ? 0 : Integer.parseInt(value));
+
+                case LONG:
+                    return format("%1$dL", value.isEmpty() ? 0 : Long.parseLong(value));
+
+                case FLOAT:
+                    float floatValue = value.isEmpty() ? 0 : Float.parseFloat(value);
+                    if (Float.isNaN(floatValue) || Float.isInfinite(floatValue)) {
+                        break;
+                    }
+                    return format("%1$sf", floatValue);
+
+                case DOUBLE:
+                    double doubleValue = value.isEmpty() ? 0 : Double.parseDouble(value);
+                    if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+                        break;
+                    }
+                    return format("%1$sd", doubleValue);
+
+                default:
+                    break;
+            }
+
+        } catch (NumberFormatException exception) {
+            // Reported below.
+        }
+
+        throw new IllegalArgumentException(format("cannot have default value \"%1$s\" for extra "
+                + "parameter %2$s of type %3$s", defaultValue, parameter.getSimpleName(), type));
+    }
+
+    private static boolean isType(TypeMirror type,
+            String qualifiedName,
+            Elements elements,
+            Types types) {
+
+        return types.isSameType(type, elements.getTypeElement(qualifiedName).asType());
+    }
+
+    private static boolean isSubtype(TypeMirror type,
+            String qualifiedName,
+            Elements elements,
+            Types types) {
+
+        return types.isAssignable(type, elements.getTypeElement(qualifiedName).asType());
+    }
+
+    private static boolean isArrayListOf(TypeMirror type,
+            String elementQualifiedName,
+            Elements elements,
+            Types types) {
+
+        TypeMirror listType = types.getDeclaredType(
+                elements.getTypeElement(ARRAY_LIST_QUALIFIED_NAME),
+                elements.getTypeElement(elementQualifiedName).asType());
+
+        return types.isSameType(type, listType);
+    }
+}
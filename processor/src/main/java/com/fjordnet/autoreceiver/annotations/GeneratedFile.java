@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.annotations;
+
+import javax.lang.model.element.Element;
+
+/**
+ * A rendered file, to be written to the filer: either a Java source file, or a resource in the
+ * source output, e.g. an aspect or an index.
+ */
+public class GeneratedFile {
+
+    private final Element originatingElement;
+    private final String packageName;
+    private final String name;
+    private final boolean isSource;
+    private final String content;
+
+    /**
+     * Create a file.
+     *
+     * @param originatingElement the element from which the file was generated.
+     * @param packageName the package of the file.
+     * @param name the simple name of the class declared by a source file, or the name of a
+     * resource file relative to its package.
+     * @param isSource {@code true} for a Java source file, {@code false} for a resource.
+     * @param content the content of the file.
+     */
+    public GeneratedFile(Element originatingElement,
+            String packageName,
+            String name,
+            boolean isSource,
+            String content) {
+
+        this.originatingElement = originatingElement;
+        this.packageName = packageName;
+        this.name = name;
+        this.isSource = isSource;
+        this.content = content;
+    }
+
+    public Element getOriginatingElement() {
+        return originatingElement;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isSource() {
+        return isSource;
+    }
+
+    public String getContent() {
+        return content;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.annotations;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import static java.lang.String.format;
+
+/**
+ * <p>
+ * Timings and counts of the work done by the annotation processor over all rounds of a
+ * compilation, written as a JSON report once processing is over.
+ * </p><p>
+ * Durations are measured with {@link System#nanoTime()} and reported in milliseconds.
+ * The time spent writing generated files is measured by the writers returned by
+ * {@link #track(Writer)}, and is included in the generation time.
+ * </p>
+ */
+public class ProcessorReport {
+
+    private final String backend;
+
+    private int roundCount;
+    private int classCount;
+    private int methodCount;
+    private int generatedCount;
+    private int fileCount;
+    private int errorCount;
+    private int hierarchyLookupCount;
+    private long byteCount;
+
+    private long scanTime;
+    private long generationTime;
+    private long writeTime;
+    private long totalTime;
+
+    /**
+     * Create an empty report.
+     *
+     * @param backend the backend of the generated code, e.g.
+     * {@value AutoReceiverProcessor#BACKEND_BINDER}.
+     */
+    public ProcessorReport(String backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Record a processing round.
+     *
+     * @param classCount the number of classes with annotated methods.
+     * @param methodCount the number of annotated methods.
+     * @param scanTime the time spent collecting the annotated methods, in nanoseconds.
+     * @param generationTime the time spent generating code, in nanoseconds.
+     * @param totalTime the time spent processing the round, in nanoseconds.
+     */
+    public void addRound(int classCount,
+            int methodCount,
+            long scanTime,
+            long generationTime,
+            long totalTime) {
+
+        roundCount++;
+        this.classCount += classCount;
+        this.methodCount += methodCount;
+        this.scanTime += scanTime;
+        this.generationTime += generationTime;
+        this.totalTime += totalTime;
+    }
+
+    /**
+     * Record an aspect or binder generated for a class.
+     */
+    public void addGenerated() {
+        generatedCount++;
+    }
+
+    /**
+     * Record a class for which code couldn't be generated.
+     */
+    public void addError() {
+        errorCount++;
+    }
+
+    /**
+     * Record a class whose members were searched for lifecycle methods or a context accessor.
+     * Classes are searched once per round, so this grows with the number of distinct classes
+     * in the hierarchies of annotated classes.
+     */
+    public void addHierarchyLookup() {
+        hierarchyLookupCount++;
+    }
+
+    /**
+     * Wrap the writer of a generated file, so that the bytes written and the time spent
+     * writing them are recorded.
+     *
+     * @param writer the writer of the generated file.
+     *
+     * @return a writer recording its output before passing it to the specified writer.
+     */
+    public Writer track(Writer writer) {
+        fileCount++;
+        return new TrackingWriter(writer);
+    }
+
+    /**
+     * Write the report to the specified file, as a JSON object.
+     *
+     * @param file the file to which the report is written. Its parent directories are created
+     * as needed.
+     *
+     * @throws IOException if the report can't be written.
+     */
+    public void write(File file) throws IOException {
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file),
+                StandardCharsets.UTF_8)) {
+
+            writer.write(format(Locale.ROOT, "{\n"
+                            + "  \"backend\": \"%1$s\",\n"
+                            + "  \"rounds\": %2$d,\n"
+                            + "  \"classesScanned\": %3$d,\n"
+                            + "  \"methodsScanned\": %4$d,\n"
+                            + "  \"classesGenerated\": %5$d,\n"
+                            + "  \"classErrors\": %6$d,\n"
+                            + "  \"filesWritten\": %7$d,\n"
+                            + "  \"bytesWritten\": %8$d,\n"
+                            + "  \"hierarchyLookups\": %9$d,\n"
+                            + "  \"timings\": {\n"
+                            + "    \"scanMs\": %10$.3f,\n"
+                            + "    \"generationMs\": %11$.3f,\n"
+                            + "    \"writeMs\": %12$.3f,\n"
+                            + "    \"totalMs\": %13$.3f\n"
+                            + "  }\n"
+                            + "}\n",
+                    backend,
+                    roundCount,
+                    classCount,
+                    methodCount,
+                    generatedCount,
+                    errorCount,
+                    fileCount,
+                    byteCount,
+                    hierarchyLookupCount,
+                    toMillis(scanTime),
+                    toMillis(generationTime),
+                    toMillis(writeTime),
+                    toMillis(totalTime)));
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    // Counts the UTF-8 encoded length of the characters written, which is the size of the
+    // generated file, without encoding them.
+    private class TrackingWriter extends FilterWriter {
+
+        TrackingWriter(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        public void write(int character) throws IOException {
+            long startTime = System.nanoTime();
+            super.write(character);
+            byteCount += getEncodedLength((char) character);
+            writeTime += System.nanoTime() - startTime;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            long startTime = System.nanoTime();
+            super.write(buffer, offset, length);
+            for (int index = offset; index < offset + length; index++) {
+                byteCount += getEncodedLength(buffer[index]);
+            }
+            writeTime += System.nanoTime() - startTime;
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            long startTime = System.nanoTime();
+            super.write(string, offset, length);
+            for (int index = offset; index < offset + length; index++) {
+                byteCount += getEncodedLength(string.charAt(index));
+            }
+            writeTime += System.nanoTime() - startTime;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long startTime = System.nanoTime();
+            super.close();
+            writeTime += System.nanoTime() - startTime;
+        }
+
+        // A surrogate pair is encoded in 4 bytes, i.e. 2 per surrogate.
+        private int getEncodedLength(char character) {
+            if (0x80 > character) {
+                return 1;
+            }
+            if (0x800 > character || Character.isSurrogate(character)) {
+                return 2;
+            }
+            return 3;
+        }
+    }
+}
@@ -22,13 +22,16 @@ import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
 import javax.lang.model.type.TypeMirror;
 import javax.lang.model.util.Elements;
 import javax.lang.model.util.Types;
 
 import static java.lang.String.format;
-import static javax.lang.model.element.ElementKind.METHOD;
+import static javax.lang.model.element.ElementKind.PACKAGE;
 import static javax.lang.model.type.TypeKind.DECLARED;
+import static javax.lang.model.type.TypeKind.VOID;
 
 /**
  * Utility methods for annotation processing.
@@ -112,91 +115,101 @@ public abstract class ProcessorUtils {
     }
 
     /**
-     * Retrieve the {@link ExecutableElement} representing the method whose name matches
-     * the specified name. This implementation searches through declared methods
-     * as well as inherited methods from parent classes for potential matches.
-     * An error is thrown if more than one method matches the specified name.
+     * Get the top level class enclosing the specified element. If the element is itself a top
+     * level class, it is returned as is.
      *
-     * @param methodName the name of the method to find.
-     * @param classElement the element representing the class which is expected to contain the
-     * target method.
-     * @param typeUtils {@link Types} instance from
-     * {@link javax.annotation.processing.ProcessingEnvironment}.
+     * @param element the element whose top level enclosing class is to be retrieved.
      *
-     * @return the {@link ExecutableElement} representing the method whose name matches
-     * the specified name, or {@code null} if none are found, or more than 1 is found.
-     * @throws IllegalArgumentException if there was more than 1 matching method found.
+     * @return the top level class enclosing the specified element.
      */
-    public static ExecutableElement findMethodByName(
-            String methodName,
-            Element classElement,
-            Types typeUtils)
-            throws IllegalArgumentException {
-
-        List<? extends Element> elements = classElement.getEnclosedElements();
-        boolean isDeclared = false;
-        ExecutableElement methodElement = null;
-
-        for (Element element : elements) {
-
-            if (METHOD != element.getKind()
-                    || !methodName.equals(element.getSimpleName().toString())) {
+    public static TypeElement getTopLevelClass(Element element) {
 
-                continue;
-            }
-
-            // If more than one method was found, raise an error.
-            if (isDeclared) {
-                throw new IllegalArgumentException(
-                        format("Multiple methods with name %s found", methodName));
-            }
-
-            isDeclared = true;
-            methodElement = (ExecutableElement) element;
-        }
+        Element topLevelElement = element;
+        while (null != topLevelElement.getEnclosingElement()
+                && PACKAGE != topLevelElement.getEnclosingElement().getKind()) {
 
-        if (null != methodElement) {
-            return methodElement;
+            topLevelElement = topLevelElement.getEnclosingElement();
         }
 
-        // If the method wasn't found, look for it in parent classes.
-        Element parentElement = getParentClass(classElement, typeUtils);
-        return null == parentElement
-                ? null
-                : findMethodByName(methodName, parentElement, typeUtils);
+        return (TypeElement) topLevelElement;
     }
 
     /**
-     * Query whether the specified method element throws any checked exceptions.
+     * Get the JVM descriptor of the specified method, e.g. {@code (Landroid/os/Bundle;)V}.
      *
-     * @param methodElement the method element in question.
+     * @param methodElement the method whose descriptor is to be retrieved.
      * @param elementUtils {@link Elements} instance from
      * {@link javax.annotation.processing.ProcessingEnvironment}.
      * @param typeUtils {@link Types} instance from
      * {@link javax.annotation.processing.ProcessingEnvironment}.
      *
-     * @return {@code true} if the specified method throws at least one checked exception.
+     * @return the JVM descriptor of the specified method.
      */
-    public static boolean throwsCheckedExceptions(ExecutableElement methodElement,
+    public static String getDescriptor(ExecutableElement methodElement,
             Elements elementUtils,
             Types typeUtils) {
 
-        // Checked exceptions are all exceptions that aren't subtypes of Error or RuntimeException.
-
-        TypeMirror runtimeExceptionType = elementUtils.getTypeElement("java.lang.RuntimeException")
-                .asType();
-        TypeMirror errorType = elementUtils.getTypeElement("java.lang.Error").asType();
+        StringBuilder builder = new StringBuilder("(");
+        for (VariableElement parameter : methodElement.getParameters()) {
+            appendDescriptor(builder, parameter.asType(), elementUtils, typeUtils);
+        }
+        builder.append(')');
+        appendDescriptor(builder, methodElement.getReturnType(), elementUtils, typeUtils);
 
-        for (TypeMirror thrownType : methodElement.getThrownTypes()) {
+        return builder.toString();
+    }
 
-            if (!typeUtils.isAssignable(thrownType, runtimeExceptionType)
-                    && !typeUtils.isAssignable(thrownType, errorType)) {
+    private static void appendDescriptor(StringBuilder builder,
+            TypeMirror type,
+            Elements elementUtils,
+            Types typeUtils) {
 
-                return true;
-            }
+        if (VOID == type.getKind()) {
+            builder.append('V');
+            return;
         }
 
-        return false;
+        TypeMirror erasure = typeUtils.erasure(type);
+        switch (erasure.getKind()) {
+            case BOOLEAN:
+                builder.append('Z');
+                break;
+            case BYTE:
+                builder.append('B');
+                break;
+            case CHAR:
+                builder.append('C');
+                break;
+            case SHORT:
+                builder.append('S');
+                break;
+            case INT:
+                builder.append('I');
+                break;
+            case LONG:
+                builder.append('J');
+                break;
+            case FLOAT:
+                builder.append('F');
+                break;
+            case DOUBLE:
+                builder.append('D');
+                break;
+            case ARRAY:
+                builder.append('[');
+                appendDescriptor(builder, ((ArrayType) erasure).getComponentType(),
+                        elementUtils, typeUtils);
+                break;
+            case DECLARED:
+                TypeElement typeElement = (TypeElement) typeUtils.asElement(erasure);
+                builder.append('L')
+                        .append(elementUtils.getBinaryName(typeElement).toString()
+                                .replace('.', '/'))
+                        .append(';');
+                break;
+            default:
+                throw new IllegalArgumentException(format("Unsupported type %s", type));
+        }
     }
 
     /**
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver.annotations;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+import static java.lang.String.format;
+import static javax.lang.model.element.ElementKind.CONSTRUCTOR;
+import static javax.lang.model.element.ElementKind.FIELD;
+import static javax.lang.model.element.ElementKind.METHOD;
+import static javax.lang.model.element.Modifier.PRIVATE;
+
+/**
+ * <p>
+ * Cache of the types, members and context accessors resolved while processing a round,
+ * shared by all annotated classes of the round. Annotated classes typically share base classes,
+ * e.g. an activity or fragment base class, whose members are then indexed and searched once,
+ * rather than once per annotated class.
+ * </p><p>
+ * Elements are only valid within a round, so a cache must not be reused across rounds.
+ * </p>
+ */
+public class TypeCache {
+
+    private static final String CONTEXT_QUALIFIED_NAME = "android.content.Context";
+
+    private final Elements elements;
+    private final Types types;
+    private final ProcessorReport report;
+
+    private final Map<String, TypeMirror> typesByName = new HashMap<>();
+    private final Map<Element, Element> parentClasses = new HashMap<>();
+    private final Map<Element, MemberIndex> memberIndices = new HashMap<>();
+    private final Map<Element, Map<String, ExecutableElement>> resolvedMethods = new HashMap<>();
+    private final Map<Element, String> contextAccessors = new HashMap<>();
+
+    /**
+     * Create an empty cache.
+     *
+     * @param elements the element utilities of the processing environment.
+     * @param types the type utilities of the processing environment.
+     * @param report the report to which lookups that aren't cached are recorded.
+     */
+    public TypeCache(Elements elements, Types types, ProcessorReport report) {
+        this.elements = elements;
+        this.types = types;
+        this.report = report;
+    }
+
+    /**
+     * Get the type of the class with the specified name.
+     *
+     * @param qualifiedName the canonical name of the class, e.g. {@code android.content.Intent}.
+     *
+     * @return the type of the class.
+     * @throws IllegalArgumentException if the class can't be found.
+     */
+    public TypeMirror getType(String qualifiedName) {
+
+        TypeMirror type = typesByName.get(qualifiedName);
+        if (null == type) {
+
+            Element typeElement = elements.getTypeElement(qualifiedName);
+            if (null == typeElement) {
+                throw new IllegalArgumentException(format("Class %s not found", qualifiedName));
+            }
+
+            type = typeElement.asType();
+            typesByName.put(qualifiedName, type);
+        }
+
+        return type;
+    }
+
+    /**
+     * Get the parent class of the specified class element.
+     *
+     * @param classElement the class element whose parent element is to be retrieved.
+     *
+     * @return the parent class of the specified class element, or {@code null} if none.
+     * @see ProcessorUtils#getParentClass(Element, Types)
+     */
+    public Element getParentClass(Element classElement) {
+
+        if (!parentClasses.containsKey(classElement)) {
+            parentClasses.put(classElement, ProcessorUtils.getParentClass(classElement, types));
+        }
+
+        return parentClasses.get(classElement);
+    }
+
+    /**
+     * Retrieve the method whose name matches the specified name, declared by the specified
+     * class or inherited from its parent classes.
+     *
+     * @param methodName the name of the method to find.
+     * @param classElement the class which is expected to contain the method.
+     *
+     * @return the method whose name matches the specified name, or {@code null} if none is
+     * found.
+     * @throws IllegalArgumentException if more than one matching method is declared by the
+     * class declaring the closest match.
+     */
+    public ExecutableElement findMethodByName(String methodName, Element classElement)
+            throws IllegalArgumentException {
+
+        Map<String, ExecutableElement> methods = resolvedMethods.get(classElement);
+        if (null == methods) {
+            methods = new HashMap<>();
+            resolvedMethods.put(classElement, methods);
+        }
+
+        if (methods.containsKey(methodName)) {
+            return methods.get(methodName);
+        }
+
+        MemberIndex index = getMemberIndex(classElement);
+        if (index.ambiguousNames.contains(methodName)) {
+            throw new IllegalArgumentException(
+                    format("Multiple methods with name %s found", methodName));
+        }
+
+        ExecutableElement method = index.methods.get(methodName);
+        if (null == method) {
+            Element parentElement = getParentClass(classElement);
+            method = null == parentElement ? null : findMethodByName(methodName, parentElement);
+        }
+
+        methods.put(methodName, method);
+        return method;
+    }
+
+    /**
+     * Find the code accessing the context of the specified class from one of its instances:
+     * an empty string if the class is itself a context, the name of an accessible field, or the
+     * invocation of an accessible method without parameters or checked exceptions.
+     *
+     * @param classElement the class whose context accessor is to be found.
+     *
+     * @return the code accessing the context, or {@code null} if the class has no accessible
+     * context.
+     */
+    public String findContextAccessor(Element classElement) {
+
+        if (contextAccessors.containsKey(classElement)) {
+            return contextAccessors.get(classElement);
+        }
+
+        report.addHierarchyLookup();
+
+        String contextAccessor = findDeclaredContextAccessor(classElement);
+        if (null == contextAccessor) {
+            Element parentClass = getParentClass(classElement);
+            contextAccessor = null == parentClass ? null : findContextAccessor(parentClass);
+        }
+
+        contextAccessors.put(classElement, contextAccessor);
+        return contextAccessor;
+    }
+
+    /**
+     * Query whether the specified method throws any checked exceptions.
+     *
+     * @param methodElement the method element in question.
+     *
+     * @return {@code true} if the specified method throws at least one checked exception.
+     */
+    public boolean throwsCheckedExceptions(ExecutableElement methodElement) {
+
+        // Checked exceptions are all exceptions that aren't subtypes of Error or RuntimeException.
+        TypeMirror runtimeExceptionType = getType("java.lang.RuntimeException");
+        TypeMirror errorType = getType("java.lang.Error");
+
+        for (TypeMirror thrownType : methodElement.getThrownTypes()) {
+
+            if (!types.isAssignable(thrownType, runtimeExceptionType)
+                    && !types.isAssignable(thrownType, errorType)) {
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Only looks into the class itself, not its parent classes.
+    private String findDeclaredContextAccessor(Element classElement) {
+
+        TypeMirror contextType = getType(CONTEXT_QUALIFIED_NAME);
+
+        // If the class itself extends from Context, return it.
+        if (types.isAssignable(classElement.asType(), contextType)) {
+            return "";
+        }
+
+        // Iterate through enclosed members and fields
+        // to determine if one of them returns a Context.
+        for (Element member : classElement.getEnclosedElements()) {
+
+            // Skip elements that have private scope.
+            if (member.getModifiers().contains(PRIVATE)) {
+                continue;
+            }
+
+            // Do further validation on field candidates.
+            if (FIELD == member.getKind() && types.isAssignable(member.asType(), contextType)) {
+                return member.getSimpleName().toString();
+            }
+
+            // Do further validation on method candidates.
+            if (METHOD == member.getKind()) {
+                ExecutableElement method = (ExecutableElement) member;
+
+                // Skip methods that don't return a Context,
+                // that are constructors,
+                // that have parameters,
+                // or that throw checked exceptions.
+                if (!types.isAssignable(method.getReturnType(), contextType)
+                        || CONSTRUCTOR == method.getKind()
+                        || !method.getParameters().isEmpty()
+                        || throwsCheckedExceptions(method)) {
+
+                    continue;
+                }
+
+                return format("%1$s()", method.getSimpleName().toString());
+            }
+        }
+
+        return null;
+    }
+
+    private MemberIndex getMemberIndex(Element classElement) {
+
+        MemberIndex index = memberIndices.get(classElement);
+        if (null == index) {
+            report.addHierarchyLookup();
+            index = new MemberIndex(classElement);
+            memberIndices.put(classElement, index);
+        }
+
+        return index;
+    }
+
+    // The methods declared by a class, by name.
+    private static class MemberIndex {
+
+        final Map<String, ExecutableElement> methods = new HashMap<>();
+        final Set<String> ambiguousNames = new HashSet<>();
+
+        MemberIndex(Element classElement) {
+
+            for (Element member : classElement.getEnclosedElements()) {
+                if (METHOD != member.getKind()) {
+                    continue;
+                }
+
+                String name = member.getSimpleName().toString();
+                if (null != methods.put(name, (ExecutableElement) member)) {
+                    ambiguousNames.add(name);
+                }
+            }
+        }
+    }
+}
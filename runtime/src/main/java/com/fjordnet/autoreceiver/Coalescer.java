@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * <p>
+ * Coalesces bursts of broadcasts delivered to methods annotated with
+ * {@code @OnReceiveBroadcast(debounce = ...)} or {@code @OnReceiveBroadcast(throttle = ...)},
+ * so that only the latest intent of a burst is delivered.
+ * </p><p>
+ * A debouncing coalescer delivers the latest intent once no broadcast was received for its
+ * period. A throttling coalescer delivers an intent immediately if none was delivered during its
+ * period, and otherwise delivers the latest intent at the end of the period.
+ * </p><p>
+ * Intents are submitted from the thread on which the receiver is invoked, and delivered on the
+ * same thread. Pending deliveries are cancelled when the receiver is unregistered.
+ * </p>
+ */
+public final class Coalescer {
+
+    /**
+     * Callback to which coalesced intents are delivered.
+     */
+    public interface Callback {
+
+        /**
+         * Called with the latest intent of a burst of broadcasts.
+         *
+         * @param receiver the receiver to which the intent was broadcast.
+         * @param intent the latest intent broadcast to the receiver.
+         */
+        void onReceive(BroadcastReceiver receiver, Intent intent);
+    }
+
+    private final long periodMillis;
+    private final boolean isThrottling;
+    private final Callback callback;
+
+    private final Runnable delivery = new Runnable() {
+
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    private Handler handler;
+    private BroadcastReceiver pendingReceiver;
+    private Intent pendingIntent;
+    private long deliveryTime;
+
+    private Coalescer(long periodMillis, boolean isThrottling, Callback callback) {
+        this.periodMillis = periodMillis;
+        this.isThrottling = isThrottling;
+        this.callback = callback;
+    }
+
+    /**
+     * Create a coalescer delivering the latest intent once no broadcast was received for the
+     * specified period.
+     *
+     * @param periodMillis the quiet period after which the latest intent is delivered,
+     * in milliseconds.
+     * @param callback the callback to which intents are delivered.
+     *
+     * @return the debouncing coalescer.
+     */
+    public static Coalescer debounce(long periodMillis, Callback callback) {
+        return new Coalescer(periodMillis, false, callback);
+    }
+
+    /**
+     * Create a coalescer delivering at most one intent per period, the latest one.
+     *
+     * @param periodMillis the minimum time between two deliveries, in milliseconds.
+     * @param callback the callback to which intents are delivered.
+     *
+     * @return the throttling coalescer.
+     */
+    public static Coalescer throttle(long periodMillis, Callback callback) {
+        return new Coalescer(periodMillis, true, callback);
+    }
+
+    /**
+     * Submit an intent broadcast to the receiver, replacing any intent pending delivery.
+     * Must be called from the thread on which the receiver is invoked.
+     *
+     * @param receiver the receiver to which the intent was broadcast.
+     * @param intent the intent broadcast to the receiver.
+     */
+    public void submit(BroadcastReceiver receiver, Intent intent) {
+
+        synchronized (this) {
+            if (null == handler) {
+                handler = new Handler();
+            }
+
+            boolean isPending = null != pendingIntent;
+            pendingReceiver = receiver;
+            pendingIntent = intent;
+
+            if (!isThrottling) {
+                handler.removeCallbacks(delivery);
+                handler.postDelayed(delivery, periodMillis);
+                return;
+            }
+
+            if (isPending) {
+                return;
+            }
+
+            // Deliver right away, unless an intent was delivered during the period.
+            long elapsedMillis = SystemClock.uptimeMillis() - deliveryTime;
+            if (0 != deliveryTime && elapsedMillis < periodMillis) {
+                handler.postDelayed(delivery, periodMillis - elapsedMillis);
+                return;
+            }
+        }
+
+        deliver();
+    }
+
+    /**
+     * Cancel the delivery of the pending intent, if any.
+     */
+    public synchronized void cancel() {
+
+        if (null != handler) {
+            handler.removeCallbacks(delivery);
+        }
+
+        pendingReceiver = null;
+        pendingIntent = null;
+    }
+
+    private void deliver() {
+
+        BroadcastReceiver receiver;
+        Intent intent;
+
+        synchronized (this) {
+            receiver = pendingReceiver;
+            intent = pendingIntent;
+            pendingReceiver = null;
+            pendingIntent = null;
+            deliveryTime = SystemClock.uptimeMillis();
+        }
+
+        if (null != intent) {
+            callback.onReceive(receiver, intent);
+        }
+    }
+}
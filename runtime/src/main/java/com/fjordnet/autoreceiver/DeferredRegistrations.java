@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Queue of the registrations of methods annotated with
+ * {@code @OnReceiveBroadcast(deferred = true)}, run on the main thread once it is idle.
+ * </p><p>
+ * Registering a receiver is a round trip to the system, which delays the first frame of a
+ * screen when made in {@code onStart}. Deferred registrations are run once the main thread has
+ * no more pending messages instead, i.e. once the screen is drawn, in decreasing order of
+ * priority, then in order of submission. Registrations are run in batches of at most
+ * {@value #BATCH_MILLIS} milliseconds per idle period, so that input and animations aren't held
+ * back by a large number of registrations. Once a batch has run, the next one is scheduled on
+ * the main thread, and run as soon as it is idle again.
+ * </p>
+ */
+public final class DeferredRegistrations {
+
+    /**
+     * The maximum time spent running registrations per idle period, in milliseconds.
+     */
+    public static final long BATCH_MILLIS = 4;
+
+    // Pending registrations, in order of execution.
+    private static final List<Registration> PENDING = new ArrayList<>();
+
+    private static final MessageQueue.IdleHandler IDLE_HANDLER = new MessageQueue.IdleHandler() {
+
+        @Override
+        public boolean queueIdle() {
+
+            // Idle handlers are only run again once a message was dispatched: the next batch is
+            // scheduled with a message, rather than waiting for an unrelated one.
+            if (runBatch()) {
+                DispatchThreads.getMainHandler().post(SCHEDULING);
+            }
+            return false;
+        }
+    };
+
+    private static final Runnable SCHEDULING = new Runnable() {
+
+        @Override
+        public void run() {
+            Looper.myQueue().addIdleHandler(IDLE_HANDLER);
+        }
+    };
+
+    private static boolean isScheduled;
+
+    private DeferredRegistrations() {
+    }
+
+    /**
+     * Enqueue a registration, run on the main thread once it is idle.
+     *
+     * @param priority the priority of the registration. Registrations with a higher priority
+     * are run first.
+     * @param registration the registration.
+     *
+     * @return the registration, with which it can be cancelled.
+     */
+    public static Runnable enqueue(int priority, Runnable registration) {
+
+        synchronized (PENDING) {
+            // Registrations of equal priority are run in order of submission.
+            int index = PENDING.size();
+            while (0 < index && PENDING.get(index - 1).priority < priority) {
+                index--;
+            }
+            PENDING.add(index, new Registration(priority, registration));
+
+            if (isScheduled) {
+                return registration;
+            }
+            isScheduled = true;
+        }
+
+        DispatchThreads.runOnMainThread(SCHEDULING);
+        return registration;
+    }
+
+    /**
+     * Cancel a registration that wasn't run yet. Does nothing otherwise.
+     *
+     * @param registration the registration returned by {@link #enqueue(int, Runnable)}.
+     */
+    public static void cancel(Runnable registration) {
+
+        synchronized (PENDING) {
+            for (int index = 0; index < PENDING.size(); index++) {
+                if (registration == PENDING.get(index).registration) {
+                    PENDING.remove(index);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Returns true if registrations are still pending once the batch has run.
+    private static boolean runBatch() {
+
+        long deadline = SystemClock.uptimeMillis() + BATCH_MILLIS;
+
+        do {
+            Runnable registration;
+            synchronized (PENDING) {
+                if (PENDING.isEmpty()) {
+                    isScheduled = false;
+                    return false;
+                }
+                registration = PENDING.remove(0).registration;
+            }
+
+            registration.run();
+
+        } while (SystemClock.uptimeMillis() < deadline);
+
+        synchronized (PENDING) {
+            isScheduled = !PENDING.isEmpty();
+            return isScheduled;
+        }
+    }
+
+    private static class Registration {
+
+        final int priority;
+        final Runnable registration;
+
+        Registration(int priority, Runnable registration) {
+            this.priority = priority;
+            this.registration = registration;
+        }
+    }
+}
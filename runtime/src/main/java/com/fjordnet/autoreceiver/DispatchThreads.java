@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.fjordnet.autoreceiver;
+
+import android.content.BroadcastReceiver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Threads on which broadcasts are dispatched to methods annotated with
+ * {@code @OnReceiveBroadcast(thread = "...")}, rather than on the main thread.
+ * </p><p>
+ * A background thread is started for each name on first use, and shared by all receivers
+ * dispatched to that name for the lifetime of the process, so broadcasts dispatched to the same
+ * name are handled one at a time, in order. Callbacks running on such a thread can hand work
+ * that touches the UI back to the main thread with {@link #runOnMainThread(Runnable)}.
+ * </p><p>
+ * Methods annotated with {@code @OnReceiveBroadcast(async = true)} are run on a shared pool of
+ * background threads instead, with {@link #runAsync(BroadcastReceiver.PendingResult, Runnable)},
+ * so that broadcasts can be handled concurrently while the system keeps the app alive.
+ * </p>
+ */
+public final class DispatchThreads {
+
+    private static final String THREAD_NAME_FORMAT = "AutoReceiver-%s";
+    private static final String ASYNC_THREAD_NAME_FORMAT = "AutoReceiver-async-%d";
+
+    // Asynchronous broadcasts must complete within seconds: a few threads are kept busy at most,
+    // which are stopped when idle.
+    private static final int ASYNC_THREAD_COUNT =
+            Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+    private static final long ASYNC_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static final Map<String, Handler> HANDLERS = new HashMap<>();
+
+    private static Handler mainHandler;
+    private static Executor asyncExecutor;
+
+    private DispatchThreads() {
+    }
+
+    /**
+     * Get the handler of the named dispatch thread, starting the thread if needed.
+     *
+     * @param name the name of the dispatch thread.
+     *
+     * @return the handler of the named dispatch thread.
+     */
+    public static Handler getHandler(String name) {
+
+        synchronized (HANDLERS) {
+            Handler handler = HANDLERS.get(name);
+
+            if (null == handler) {
+                HandlerThread thread = new HandlerThread(String.format(THREAD_NAME_FORMAT, name),
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+
+                handler = new Handler(thread.getLooper());
+                HANDLERS.put(name, handler);
+            }
+
+            return handler;
+        }
+    }
+
+    /**
+     * Query whether the calling thread is the main thread.
+     *
+     * @return {@code true} if the calling thread is the main thread.
+     */
+    public static boolean isMainThread() {
+        return Looper.getMainLooper() == Looper.myLooper();
+    }
+
+    /**
+     * Run the specified runnable on the main thread: immediately if called from the main thread,
+     * otherwise as soon as the main thread is idle.
+     *
+     * @param runnable the runnable to be run on the main thread.
+     */
+    public static void runOnMainThread(Runnable runnable) {
+
+        if (isMainThread()) {
+            runnable.run();
+            return;
+        }
+
+        getMainHandler().post(runnable);
+    }
+
+    /**
+     * Run the specified runnable on a background thread, then finish the pending result of the
+     * broadcast being handled, even if the runnable throws. Must be called from
+     * {@link BroadcastReceiver#onReceive}. The runnable must complete before the system times
+     * out the broadcast, i.e. within 10 seconds.
+     *
+     * @param result the pending result of the broadcast, as returned by
+     * {@link BroadcastReceiver#goAsync()}, or {@code null} if the broadcast wasn't sent by the
+     * system, e.g. with {@link LocalBroadcasts}.
+     * @param runnable the runnable handling the broadcast.
+     */
+    public static void runAsync(final BroadcastReceiver.PendingResult result,
+            final Runnable runnable) {
+
+        getAsyncExecutor().execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    if (null != result) {
+                        result.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    private static synchronized Executor getAsyncExecutor() {
+
+        if (null == asyncExecutor) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(ASYNC_THREAD_COUNT,
+                    ASYNC_THREAD_COUNT, ASYNC_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            return new Thread(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+
+                            }, String.format(ASYNC_THREAD_NAME_FORMAT, count.incrementAndGet()));
+                        }
+                    });
+
+            executor.allowCoreThreadTimeOut(true);
+            asyncExecutor = executor;
+        }
+
+        return asyncExecutor;
+    }
+
+    static synchronized Handler getMainHandler() {
+
+        if (null == mainHandler) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+
+        return mainHandler;
+    }
+}
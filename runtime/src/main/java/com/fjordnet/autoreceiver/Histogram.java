@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Lock-free histogram of durations, recorded by {@link MetricsRecorder}.
+ * </p><p>
+ * Durations are counted in buckets whose bounds are powers of two of microseconds, i.e. the first
+ * bucket counts durations under a microsecond, and bucket {@code i} durations from
+ * 2<sup>i - 1</sup> up to 2<sup>i</sup> microseconds. Percentiles are therefore approximated
+ * by the upper bound of their bucket, which is precise enough to tell a callback taking a
+ * fraction of a frame from one taking several frames. Recording a duration is a few atomic
+ * updates, and may happen concurrently with other recordings and with reads.
+ * </p>
+ */
+public final class Histogram {
+
+    /**
+     * The number of buckets, the last of which counts all durations over
+     * 2<sup>{@code BUCKET_COUNT - 2}</sup> microseconds.
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration, in nanoseconds. Negative durations are recorded as zero.
+     */
+    public void record(long nanos) {
+
+        long duration = Math.max(0, nanos);
+
+        buckets.incrementAndGet(getBucketFor(duration));
+        count.incrementAndGet();
+        totalNanos.addAndGet(duration);
+
+        long max = maxNanos.get();
+        while (duration > max && !maxNanos.compareAndSet(max, duration)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Get the number of recorded durations.
+     *
+     * @return the number of recorded durations.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get the sum of the recorded durations.
+     *
+     * @return the sum of the recorded durations, in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    /**
+     * Get the longest recorded duration.
+     *
+     * @return the longest recorded duration, in nanoseconds, or {@code 0} if none was recorded.
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Get the number of recorded durations counted by a bucket.
+     *
+     * @param bucket the index of the bucket, from {@code 0} to {@link #BUCKET_COUNT} excluded.
+     *
+     * @return the number of recorded durations counted by the bucket.
+     */
+    public long getBucketCount(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * Get an approximation of a percentile of the recorded durations.
+     *
+     * @param percentile the percentile, from {@code 0} to {@code 100}.
+     *
+     * @return the upper bound of the bucket counting the percentile, bounded by the longest
+     * recorded duration, in nanoseconds, or {@code 0} if no duration was recorded.
+     */
+    public long getPercentileNanos(double percentile) {
+
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            total += buckets.get(bucket);
+        }
+
+        // Durations recorded meanwhile may be missing from the buckets, but never in excess.
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += buckets.get(bucket);
+            if (0 < seen && seen >= rank) {
+                return Math.min(getUpperBoundNanos(bucket), getMaxNanos());
+            }
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        long count = getCount();
+        return String.format("count=%1$d mean=%2$dus p50=%3$dus p99=%4$dus max=%5$dus",
+                count,
+                0 == count ? 0 : getTotalNanos() / count / 1000,
+                getPercentileNanos(50) / 1000,
+                getPercentileNanos(99) / 1000,
+                getMaxNanos() / 1000);
+    }
+
+    private static int getBucketFor(long nanos) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(nanos / 1000));
+    }
+
+    private static long getUpperBoundNanos(int bucket) {
+        return BUCKET_COUNT - 1 == bucket ? Long.MAX_VALUE : (1L << bucket) * 1000;
+    }
+}
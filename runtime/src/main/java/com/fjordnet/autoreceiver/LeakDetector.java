@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Debugging aid reporting components whose generated broadcast receivers are still registered
+ * after they were destroyed, e.g. because {@code unregisterIn} names a method that isn't called.
+ * </p><p>
+ * The detector is disabled by default, in which case the generated code only pays for a field
+ * read per registration. Once enabled with {@link #enable(Application, Listener)}, typically from
+ * the application class of debug builds, it keeps track of registered receivers and reports
+ * them when their activity is destroyed, or when their component is garbage collected while they
+ * are still registered. Generated receivers only hold their component weakly, so such leaks
+ * retain the receivers rather than the components.
+ * </p>
+ */
+public final class LeakDetector {
+
+    private static final String TAG = "AutoReceiver";
+
+    /**
+     * Listener to which leaked registrations are reported.
+     */
+    public interface Listener {
+
+        /**
+         * Called on the main thread when a receiver is still registered after its component
+         * was destroyed. The receiver isn't reported again.
+         *
+         * @param componentName the name of the class of the component.
+         * @param receiver the receiver that is still registered.
+         */
+        void onLeak(String componentName, BroadcastReceiver receiver);
+    }
+
+    private static final ReferenceQueue<Object> COLLECTED_COMPONENTS = new ReferenceQueue<>();
+    private static final Map<BroadcastReceiver, Watch> WATCHES = new HashMap<>();
+
+    private static volatile Listener listener;
+
+    private LeakDetector() {
+    }
+
+    /**
+     * Enable the detector, logging leaked registrations as warnings.
+     *
+     * @param application the application whose activities are watched.
+     *
+     * @see #enable(Application, Listener)
+     */
+    public static void enable(Application application) {
+
+        enable(application, new Listener() {
+
+            @Override
+            public void onLeak(String componentName, BroadcastReceiver receiver) {
+                Log.w(TAG, String.format("%1$s was destroyed while %2$s was still registered",
+                        componentName, receiver));
+            }
+        });
+    }
+
+    /**
+     * Enable the detector. Receivers registered before are not watched.
+     *
+     * @param application the application whose activities are watched.
+     * @param leakListener the listener to which leaked registrations are reported.
+     */
+    public static void enable(Application application, Listener leakListener) {
+
+        if (null != listener) {
+            listener = leakListener;
+            return;
+        }
+
+        listener = leakListener;
+        application.registerActivityLifecycleCallbacks(
+                new Application.ActivityLifecycleCallbacks() {
+
+                    @Override
+                    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+                    }
+
+                    @Override
+                    public void onActivityStarted(Activity activity) {
+                    }
+
+                    @Override
+                    public void onActivityResumed(Activity activity) {
+                    }
+
+                    @Override
+                    public void onActivityPaused(Activity activity) {
+                    }
+
+                    @Override
+                    public void onActivityStopped(Activity activity) {
+                    }
+
+                    @Override
+                    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+                    }
+
+                    @Override
+                    public void onActivityDestroyed(final Activity activity) {
+
+                        // Receivers may still be unregistered once onDestroy returns.
+                        DispatchThreads.getMainHandler().post(new Runnable() {
+
+                            @Override
+                            public void run() {
+                                reportLeaks(activity);
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Called by the generated code once a receiver is registered.
+     *
+     * @param component the component declaring the receiver's callbacks.
+     * @param receiver the registered receiver.
+     */
+    public static void onRegistered(Object component, BroadcastReceiver receiver) {
+
+        if (null == listener) {
+            return;
+        }
+
+        synchronized (WATCHES) {
+            WATCHES.put(receiver, new Watch(component, receiver));
+        }
+
+        reportLeaks(null);
+    }
+
+    /**
+     * Called by the generated code once a receiver is unregistered.
+     *
+     * @param receiver the unregistered receiver.
+     */
+    public static void onUnregistered(BroadcastReceiver receiver) {
+
+        if (null == listener) {
+            return;
+        }
+
+        synchronized (WATCHES) {
+            WATCHES.remove(receiver);
+        }
+    }
+
+    // Reports the receivers of the destroyed activity, if any, and of collected components.
+    private static void reportLeaks(Activity destroyedActivity) {
+
+        List<Watch> leaks = new ArrayList<>();
+
+        synchronized (WATCHES) {
+            for (Watch watch = (Watch) COLLECTED_COMPONENTS.poll(); null != watch;
+                    watch = (Watch) COLLECTED_COMPONENTS.poll()) {
+
+                if (watch == WATCHES.get(watch.receiver)) {
+                    leaks.add(WATCHES.remove(watch.receiver));
+                }
+            }
+
+            if (null != destroyedActivity) {
+                for (Watch watch : new ArrayList<>(WATCHES.values())) {
+                    if (destroyedActivity == watch.get()) {
+                        leaks.add(WATCHES.remove(watch.receiver));
+                    }
+                }
+            }
+        }
+
+        if (leaks.isEmpty()) {
+            return;
+        }
+
+        // Collected components are detected on registration, possibly off the main thread.
+        final List<Watch> reportedLeaks = leaks;
+        DispatchThreads.runOnMainThread(new Runnable() {
+
+            @Override
+            public void run() {
+                for (Watch leak : reportedLeaks) {
+                    listener.onLeak(leak.componentName, leak.receiver);
+                }
+            }
+        });
+    }
+
+    private static class Watch extends WeakReference<Object> {
+
+        final String componentName;
+        final BroadcastReceiver receiver;
+
+        Watch(Object component, BroadcastReceiver receiver) {
+            super(component, COLLECTED_COMPONENTS);
+            this.componentName = component.getClass().getName();
+            this.receiver = receiver;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * In-process dispatcher of broadcasts that never leave the app, delivered to methods annotated
+ * with {@code @OnReceiveBroadcast(local = true)}.
+ * </p><p>
+ * Unlike broadcasts sent with {@code Context.sendBroadcast}, local broadcasts don't go through
+ * the system: receivers are kept in a registry keyed by action, and the intent passed to
+ * {@link #send(Context, Intent)} is handed to them as is, without being marshalled. Receivers
+ * must therefore not modify the intent. Receivers are matched on the action of the intent only.
+ * </p><p>
+ * Receivers are invoked on the main thread, unless registered with a handler: directly if the
+ * broadcast is sent from the main thread, otherwise as soon as the main thread is idle.
+ * A receiver isn't invoked once unregistered, even if a broadcast was sent before.
+ * </p>
+ */
+public final class LocalBroadcasts {
+
+    private static final Registration[] NO_REGISTRATIONS = new Registration[0];
+
+    // Registrations are replaced rather than modified, so that broadcasts can be sent
+    // without copying them.
+    private static final Map<String, Registration[]> REGISTRATIONS_BY_ACTION = new HashMap<>();
+    private static final Map<BroadcastReceiver, Registration> REGISTRATIONS_BY_RECEIVER
+            = new HashMap<>();
+
+    private LocalBroadcasts() {
+    }
+
+    /**
+     * Register a receiver for the actions of the specified filter, invoked on the main thread.
+     *
+     * @param receiver the receiver to be registered.
+     * @param filter the filter whose actions are delivered to the receiver.
+     *
+     * @see #register(BroadcastReceiver, IntentFilter, Handler)
+     */
+    public static void register(BroadcastReceiver receiver, IntentFilter filter) {
+        register(receiver, filter, null);
+    }
+
+    /**
+     * Register a receiver for the actions of the specified filter, replacing any previous
+     * registration of the receiver.
+     *
+     * @param receiver the receiver to be registered.
+     * @param filter the filter whose actions are delivered to the receiver.
+     * @param handler the handler on whose thread the receiver is invoked, or {@code null} for
+     * the main thread.
+     */
+    public static void register(BroadcastReceiver receiver, IntentFilter filter, Handler handler) {
+
+        String[] actions = new String[filter.countActions()];
+        for (int index = 0; index < actions.length; index++) {
+            actions[index] = filter.getAction(index);
+        }
+
+        Registration registration = new Registration(receiver, actions, handler);
+
+        synchronized (REGISTRATIONS_BY_ACTION) {
+            remove(REGISTRATIONS_BY_RECEIVER.get(receiver));
+            REGISTRATIONS_BY_RECEIVER.put(receiver, registration);
+
+            for (String action : actions) {
+                Registration[] registrations = REGISTRATIONS_BY_ACTION.get(action);
+                if (null == registrations) {
+                    registrations = NO_REGISTRATIONS;
+                }
+
+                registrations = Arrays.copyOf(registrations, registrations.length + 1);
+                registrations[registrations.length - 1] = registration;
+                REGISTRATIONS_BY_ACTION.put(action, registrations);
+            }
+        }
+    }
+
+    /**
+     * Unregister a receiver. Does nothing if the receiver isn't registered.
+     *
+     * @param receiver the receiver to be unregistered.
+     */
+    public static void unregister(BroadcastReceiver receiver) {
+
+        synchronized (REGISTRATIONS_BY_ACTION) {
+            remove(REGISTRATIONS_BY_RECEIVER.remove(receiver));
+        }
+    }
+
+    /**
+     * Send a broadcast to the receivers registered for its action.
+     *
+     * @param context the context passed to the receivers.
+     * @param intent the intent to be broadcast.
+     *
+     * @return {@code true} if at least one receiver is registered for the action of the intent.
+     */
+    public static boolean send(Context context, Intent intent) {
+
+        Registration[] registrations;
+        synchronized (REGISTRATIONS_BY_ACTION) {
+            registrations = REGISTRATIONS_BY_ACTION.get(intent.getAction());
+        }
+
+        if (null == registrations) {
+            return false;
+        }
+
+        for (Registration registration : registrations) {
+            registration.dispatch(context, intent);
+        }
+
+        return true;
+    }
+
+    private static void remove(Registration registration) {
+
+        if (null == registration) {
+            return;
+        }
+
+        registration.isRegistered = false;
+
+        for (String action : registration.actions) {
+            Registration[] registrations = REGISTRATIONS_BY_ACTION.get(action);
+            if (null == registrations) {
+                continue;
+            }
+
+            Registration[] remaining = new Registration[registrations.length];
+            int count = 0;
+            for (Registration other : registrations) {
+                if (registration != other) {
+                    remaining[count++] = other;
+                }
+            }
+
+            if (0 == count) {
+                REGISTRATIONS_BY_ACTION.remove(action);
+            } else {
+                REGISTRATIONS_BY_ACTION.put(action, Arrays.copyOf(remaining, count));
+            }
+        }
+    }
+
+    private static class Registration {
+
+        final BroadcastReceiver receiver;
+        final String[] actions;
+        final Handler handler;
+
+        volatile boolean isRegistered = true;
+
+        Registration(BroadcastReceiver receiver, String[] actions, Handler handler) {
+            this.receiver = receiver;
+            this.actions = actions;
+            this.handler = handler;
+        }
+
+        void dispatch(final Context context, final Intent intent) {
+
+            Runnable delivery = new Runnable() {
+
+                @Override
+                public void run() {
+                    if (isRegistered) {
+                        receiver.onReceive(context, intent);
+                    }
+                }
+            };
+
+            if (null == handler) {
+                DispatchThreads.runOnMainThread(delivery);
+            } else {
+                handler.post(delivery);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import android.content.BroadcastReceiver;
+
+/**
+ * <p>
+ * Base class of the receivers generated when metrics are enabled, keeping track of their
+ * current registration.
+ * </p><p>
+ * Generated receivers are reused across the registrations of their target instance: the time
+ * to the first broadcast is measured from the start of each registration, rather than from the
+ * creation of the receiver, and reported once per registration with
+ * {@link ReceiverMetrics#onFirstDelivered(String, long, long)}.
+ * </p>
+ */
+public abstract class MeteredReceiver extends BroadcastReceiver {
+
+    /**
+     * The value of {@code System.nanoTime()} when the current registration started.
+     * Written from the registering thread, and read from the thread receiving broadcasts.
+     */
+    protected volatile long registrationTime;
+
+    /**
+     * Whether a broadcast was delivered since the current registration started.
+     */
+    protected volatile boolean isDelivered;
+
+    /**
+     * Record the start of a registration of the receiver. Called by generated code before
+     * registering the receiver, so that a broadcast received right away is measured from it.
+     *
+     * @param startNanos the value of {@code System.nanoTime()} before registering the receiver.
+     */
+    public void onRegistration(long startNanos) {
+        registrationTime = startNanos;
+        isDelivered = false;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Default sink of {@link ReceiverMetrics}, aggregating the metrics of each generated receiver
+ * in memory.
+ * </p><p>
+ * Metrics are kept in {@link Histogram}s, whose counts are the numbers of deliveries,
+ * registrations and unregistrations. Recording doesn't lock nor allocate, except for the first
+ * metric of a receiver, so the recorder can be left enabled in production, and its entries
+ * read periodically, e.g. to be uploaded with other performance data.
+ * </p>
+ */
+public final class MetricsRecorder implements ReceiverMetrics.Sink {
+
+    /**
+     * The metrics of a generated receiver.
+     */
+    public static final class Entry {
+
+        private final Histogram deliveries = new Histogram();
+        private final Histogram firstDeliveries = new Histogram();
+        private final Histogram registrations = new Histogram();
+        private final Histogram unregistrations = new Histogram();
+
+        private Entry() {
+        }
+
+        /**
+         * Get the time spent in the receiver's {@code onReceive} method, per broadcast.
+         *
+         * @return the histogram of the time spent delivering broadcasts.
+         */
+        public Histogram getDeliveries() {
+            return deliveries;
+        }
+
+        /**
+         * Get the time from the registration of the receiver to its first broadcast,
+         * per registration that received a broadcast.
+         *
+         * @return the histogram of the time to the first broadcast.
+         */
+        public Histogram getFirstDeliveries() {
+            return firstDeliveries;
+        }
+
+        /**
+         * Get the time spent registering the receiver, i.e. the registration IPC unless the
+         * receiver is local or shared.
+         *
+         * @return the histogram of the time spent registering the receiver.
+         */
+        public Histogram getRegistrations() {
+            return registrations;
+        }
+
+        /**
+         * Get the time spent unregistering the receiver.
+         *
+         * @return the histogram of the time spent unregistering the receiver.
+         */
+        public Histogram getUnregistrations() {
+            return unregistrations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("deliveries: %1$s; first deliveries: %2$s; registrations: %3$s; "
+                            + "unregistrations: %4$s",
+                    deliveries, firstDeliveries, registrations, unregistrations);
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    @Override
+    public void onDelivery(String receiver, String action, long nanos) {
+        getEntry(receiver).deliveries.record(nanos);
+    }
+
+    @Override
+    public void onFirstDelivery(String receiver, long nanos) {
+        getEntry(receiver).firstDeliveries.record(nanos);
+    }
+
+    @Override
+    public void onRegistration(String receiver, long nanos) {
+        getEntry(receiver).registrations.record(nanos);
+    }
+
+    @Override
+    public void onUnregistration(String receiver, long nanos) {
+        getEntry(receiver).unregistrations.record(nanos);
+    }
+
+    /**
+     * Get the metrics recorded so far.
+     *
+     * @return a live, unmodifiable view of the metrics, by name of generated receiver.
+     */
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Drop the metrics recorded so far, e.g. once they were uploaded.
+     */
+    public void reset() {
+        entries.clear();
+    }
+
+    private Entry getEntry(String receiver) {
+
+        Entry entry = entries.get(receiver);
+        if (null != entry) {
+            return entry;
+        }
+
+        Entry newEntry = new Entry();
+        entry = entries.putIfAbsent(receiver, newEntry);
+        return null == entry ? newEntry : entry;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import android.content.Intent;
+
+/**
+ * <p>
+ * Metrics of generated broadcast receivers: the time spent in their {@code onReceive} method,
+ * the time from their registration to their first broadcast, and the time spent registering
+ * and unregistering them, which is an IPC to the system for receivers that aren't local
+ * or shared.
+ * </p><p>
+ * Metrics are only reported by receivers generated with the {@code autoreceiver.metrics}
+ * annotation processor option; otherwise the generated code doesn't reference this class at all.
+ * They are reported to a {@link Sink}, by default a {@link MetricsRecorder}, which can be
+ * replaced with {@link #setSink(Sink)}. Receivers are named after the class declaring their
+ * annotated method, followed by the name of the field holding them, e.g.
+ * {@code com.example.MainActivity.onBatteryChangedReceiver}.
+ * </p>
+ */
+public final class ReceiverMetrics {
+
+    /**
+     * Sink to which metrics are reported, from the thread on which they were measured, i.e.
+     * the thread on which the receiver is registered, unregistered or receives broadcasts.
+     * Implementations must be thread-safe, and return quickly.
+     */
+    public interface Sink {
+
+        /**
+         * Called once the receiver's {@code onReceive} method returned.
+         *
+         * @param receiver the name of the receiver.
+         * @param action the action of the broadcast.
+         * @param nanos the time spent in {@code onReceive}, in nanoseconds.
+         */
+        void onDelivery(String receiver, String action, long nanos);
+
+        /**
+         * Called when the receiver receives its first broadcast following its registration,
+         * e.g. the sticky intent delivered on registration.
+         *
+         * @param receiver the name of the receiver.
+         * @param nanos the time from the start of the registration to the broadcast,
+         * in nanoseconds.
+         */
+        void onFirstDelivery(String receiver, long nanos);
+
+        /**
+         * Called once the receiver is registered.
+         *
+         * @param receiver the name of the receiver.
+         * @param nanos the time spent registering the receiver, in nanoseconds.
+         */
+        void onRegistration(String receiver, long nanos);
+
+        /**
+         * Called once the receiver is unregistered.
+         *
+         * @param receiver the name of the receiver.
+         * @param nanos the time spent unregistering the receiver, in nanoseconds.
+         */
+        void onUnregistration(String receiver, long nanos);
+    }
+
+    private static final MetricsRecorder RECORDER = new MetricsRecorder();
+
+    private static volatile Sink sink = RECORDER;
+
+    private ReceiverMetrics() {
+    }
+
+    /**
+     * Get the default sink, which records metrics in memory unless replaced.
+     *
+     * @return the default sink.
+     */
+    public static MetricsRecorder getRecorder() {
+        return RECORDER;
+    }
+
+    /**
+     * Specifies the sink to which metrics are reported.
+     *
+     * @param metricsSink the sink to which metrics are reported, or {@code null} to drop them.
+     */
+    public static void setSink(Sink metricsSink) {
+        sink = metricsSink;
+    }
+
+    /**
+     * Report a broadcast delivered to a generated receiver. Called by generated code.
+     *
+     * @param receiver the name of the receiver.
+     * @param intent the intent of the broadcast.
+     * @param startNanos the value of {@code System.nanoTime()} when {@code onReceive} was called.
+     */
+    public static void onDelivered(String receiver, Intent intent, long startNanos) {
+
+        Sink currentSink = sink;
+        if (null != currentSink) {
+            currentSink.onDelivery(receiver, intent.getAction(), System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Report the first broadcast delivered to a generated receiver. Called by generated code.
+     *
+     * @param receiver the name of the receiver.
+     * @param registrationNanos the value of {@code System.nanoTime()} when the registration of
+     * the receiver started.
+     * @param deliveryNanos the value of {@code System.nanoTime()} when {@code onReceive}
+     * was called.
+     */
+    public static void onFirstDelivered(String receiver,
+            long registrationNanos,
+            long deliveryNanos) {
+
+        Sink currentSink = sink;
+        if (null != currentSink) {
+            currentSink.onFirstDelivery(receiver, deliveryNanos - registrationNanos);
+        }
+    }
+
+    /**
+     * Report the registration of a generated receiver. Called by generated code.
+     *
+     * @param receiver the name of the receiver.
+     * @param startNanos the value of {@code System.nanoTime()} before registering the receiver.
+     */
+    public static void onRegistered(String receiver, long startNanos) {
+
+        Sink currentSink = sink;
+        if (null != currentSink) {
+            currentSink.onRegistration(receiver, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Report the unregistration of a generated receiver. Called by generated code.
+     *
+     * @param receiver the name of the receiver.
+     * @param startNanos the value of {@code System.nanoTime()} before unregistering the receiver.
+     */
+    public static void onUnregistered(String receiver, long startNanos) {
+
+        Sink currentSink = sink;
+        if (null != currentSink) {
+            currentSink.onUnregistration(receiver, System.nanoTime() - startNanos);
+        }
+    }
+}
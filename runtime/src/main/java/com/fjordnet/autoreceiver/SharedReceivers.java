@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Process-wide hub sharing system registrations between the receivers of methods annotated with
+ * {@code @OnReceiveBroadcast(shared = true)}.
+ * </p><p>
+ * A single receiver is registered with the system for each distinct set of actions, on the
+ * application context, as long as at least one receiver is registered for that set with
+ * {@link #register(Context, BroadcastReceiver, IntentFilter, Handler)}. Broadcasts are then fanned
+ * out in-process to these receivers, so the number of system registrations grows with the number
+ * of distinct action sets rather than the number of live components. Receivers are matched on
+ * the actions of their filter only.
+ * </p><p>
+ * Receivers are invoked on the main thread, unless registered with a handler, and are passed the
+ * application context, so that the hub doesn't retain the components registering them.
+ * A receiver isn't invoked once unregistered, even if a broadcast was received before.
+ * The initial sticky broadcast delivered by the system isn't fanned out: the sticky intent is
+ * returned by the registration instead, as it is by {@code Context.registerReceiver}.
+ * </p>
+ */
+public final class SharedReceivers {
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private static final Map<String, Hub> HUBS_BY_ACTIONS = new HashMap<>();
+    private static final Map<BroadcastReceiver, Subscription> SUBSCRIPTIONS_BY_RECEIVER
+            = new HashMap<>();
+
+    private SharedReceivers() {
+    }
+
+    /**
+     * Register a receiver for the actions of the specified filter, invoked on the main thread.
+     *
+     * @param context the context from which the application context is retrieved.
+     * @param receiver the receiver to be registered.
+     * @param filter the filter whose actions are delivered to the receiver.
+     *
+     * @return the current sticky intent matching the filter, if any, or {@code null}.
+     *
+     * @see #register(Context, BroadcastReceiver, IntentFilter, Handler)
+     */
+    public static Intent register(Context context,
+            BroadcastReceiver receiver,
+            IntentFilter filter) {
+
+        return register(context, receiver, filter, null);
+    }
+
+    /**
+     * Register a receiver for the actions of the specified filter, replacing any previous
+     * registration of the receiver. The system registration for these actions is made by the
+     * first receiver registered for them.
+     *
+     * @param context the context from which the application context is retrieved.
+     * @param receiver the receiver to be registered.
+     * @param filter the filter whose actions are delivered to the receiver.
+     * @param handler the handler on whose thread the receiver is invoked, or {@code null} for
+     * the main thread.
+     *
+     * @return the current sticky intent matching the filter, if any, or {@code null}.
+     */
+    public static Intent register(Context context,
+            BroadcastReceiver receiver,
+            IntentFilter filter,
+            Handler handler) {
+
+        String[] actions = new String[filter.countActions()];
+        for (int index = 0; index < actions.length; index++) {
+            actions[index] = filter.getAction(index);
+        }
+
+        // Filters listing the same actions in a different order share their hub.
+        Arrays.sort(actions);
+        String key = Arrays.toString(actions);
+
+        synchronized (HUBS_BY_ACTIONS) {
+            remove(SUBSCRIPTIONS_BY_RECEIVER.get(receiver));
+
+            Hub hub = HUBS_BY_ACTIONS.get(key);
+            if (null == hub) {
+                hub = new Hub(key, context.getApplicationContext(), filter);
+                HUBS_BY_ACTIONS.put(key, hub);
+            }
+
+            Subscription subscription = new Subscription(hub, receiver, handler);
+            SUBSCRIPTIONS_BY_RECEIVER.put(receiver, subscription);
+            hub.add(subscription);
+
+            return hub.stickyIntent;
+        }
+    }
+
+    /**
+     * Unregister a receiver. The system registration for its actions is released once no
+     * receiver is registered for them. Does nothing if the receiver isn't registered.
+     *
+     * @param receiver the receiver to be unregistered.
+     */
+    public static void unregister(BroadcastReceiver receiver) {
+
+        synchronized (HUBS_BY_ACTIONS) {
+            remove(SUBSCRIPTIONS_BY_RECEIVER.remove(receiver));
+        }
+    }
+
+    private static void remove(Subscription subscription) {
+
+        if (null == subscription) {
+            return;
+        }
+
+        subscription.isRegistered = false;
+
+        Hub hub = subscription.hub;
+        if (hub.remove(subscription)) {
+            HUBS_BY_ACTIONS.remove(hub.key);
+        }
+    }
+
+    private static class Hub extends BroadcastReceiver {
+
+        final String key;
+        final Context applicationContext;
+
+        // Subscriptions are replaced rather than modified, so that broadcasts can be fanned out
+        // without copying them.
+        volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS;
+
+        // The actions known to be sticky: the actions of the sticky intent returned by the system
+        // registration, and of the initial sticky broadcasts. A hub may serve other actions.
+        final Set<String> stickyActions = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+
+        // The latest intent of a sticky action, null unless the system delivered one.
+        volatile Intent stickyIntent;
+
+        Hub(String key, Context applicationContext, IntentFilter filter) {
+            this.key = key;
+            this.applicationContext = applicationContext;
+
+            Intent intent = applicationContext.registerReceiver(this, filter);
+            if (null != intent) {
+                addStickyIntent(intent);
+            }
+        }
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+
+            // Subscribers were handed the sticky intent on registration already.
+            if (isInitialStickyBroadcast()) {
+                addStickyIntent(intent);
+                return;
+            }
+
+            // Later broadcasts of a sticky action replace its sticky intent.
+            String action = intent.getAction();
+            if (null != action && stickyActions.contains(action)) {
+                stickyIntent = intent;
+            }
+
+            for (Subscription subscription : subscriptions) {
+                subscription.dispatch(intent);
+            }
+        }
+
+        private void addStickyIntent(Intent intent) {
+
+            String action = intent.getAction();
+            if (null != action) {
+                stickyActions.add(action);
+            }
+            stickyIntent = intent;
+        }
+
+        void add(Subscription subscription) {
+            Subscription[] updated = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+            updated[updated.length - 1] = subscription;
+            subscriptions = updated;
+        }
+
+        // Returns true if the hub was unregistered from the system, having no subscriptions left.
+        boolean remove(Subscription subscription) {
+
+            Subscription[] remaining = new Subscription[subscriptions.length];
+            int count = 0;
+            for (Subscription other : subscriptions) {
+                if (subscription != other) {
+                    remaining[count++] = other;
+                }
+            }
+
+            subscriptions = Arrays.copyOf(remaining, count);
+            if (0 < count) {
+                return false;
+            }
+
+            applicationContext.unregisterReceiver(this);
+            return true;
+        }
+    }
+
+    private static class Subscription {
+
+        final Hub hub;
+        final BroadcastReceiver receiver;
+        final Handler handler;
+
+        volatile boolean isRegistered = true;
+
+        Subscription(Hub hub, BroadcastReceiver receiver, Handler handler) {
+            this.hub = hub;
+            this.receiver = receiver;
+            this.handler = handler;
+        }
+
+        void dispatch(final Intent intent) {
+
+            Runnable delivery = new Runnable() {
+
+                @Override
+                public void run() {
+                    if (isRegistered) {
+                        receiver.onReceive(hub.applicationContext, intent);
+                    }
+                }
+            };
+
+            // The hub receives broadcasts on the main thread.
+            if (null == handler) {
+                delivery.run();
+            } else {
+                handler.post(delivery);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 FJORD
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.fjordnet.autoreceiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ * Sticky broadcasts, delivered to methods annotated with
+ * {@code @OnReceiveBroadcast(sticky = true)} as soon as their receiver is registered.
+ * </p><p>
+ * The system returns the current sticky intent matching a receiver's filter when registering it,
+ * and delivers it to the receiver later on. Generated receivers are passed that intent
+ * immediately with {@link #deliver(Context, BroadcastReceiver, Intent, Handler)} instead, and
+ * ignore its later delivery, so the state of a component is known as soon as it starts, at no
+ * additional cost.
+ * </p><p>
+ * The current sticky intent of an action can also be queried with {@link #get(Context, String)}.
+ * Intents are cached process-wide, and kept up to date by a receiver registered for each queried
+ * action, so that components querying the same action share a single lookup.
+ * </p>
+ */
+public final class StickyBroadcasts {
+
+    // Cached sticky intents by action, null if the action has no sticky intent yet.
+    private static final Map<String, Intent> INTENTS = new HashMap<>();
+
+    // Actions of the sticky intents delivered to receivers, until delivered again by the system.
+    private static final Map<BroadcastReceiver, String> DELIVERED_ACTIONS = new WeakHashMap<>();
+
+    // Receivers keep flagging the last broadcast delivered by the system as initial, so direct
+    // deliveries are told apart by the thread they're made from.
+    private static final ThreadLocal<BroadcastReceiver> DELIVERING_RECEIVER = new ThreadLocal<>();
+
+    private static final BroadcastReceiver CACHE_RECEIVER = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (INTENTS) {
+                INTENTS.put(intent.getAction(), intent);
+            }
+        }
+    };
+
+    private StickyBroadcasts() {
+    }
+
+    /**
+     * Get the current sticky intent of the specified action. The first query of an action looks
+     * it up from the system, and keeps it up to date afterwards.
+     *
+     * @param context the context from which the application context is retrieved.
+     * @param action the action of the sticky intent.
+     *
+     * @return the current sticky intent of the action, or {@code null} if there is none.
+     */
+    public static Intent get(Context context, String action) {
+
+        synchronized (INTENTS) {
+            if (INTENTS.containsKey(action)) {
+                return INTENTS.get(action);
+            }
+
+            Intent intent = context.getApplicationContext().registerReceiver(CACHE_RECEIVER,
+                    new IntentFilter(action));
+
+            INTENTS.put(action, intent);
+            return intent;
+        }
+    }
+
+    /**
+     * Deliver the sticky intent returned by the registration of a receiver to that receiver.
+     *
+     * @param context the context with which the receiver was registered.
+     * @param receiver the receiver to which the intent is delivered.
+     * @param intent the sticky intent returned by {@code Context.registerReceiver}, or
+     * {@code null} if there was none, in which case nothing is delivered.
+     * @param handler the handler with which the receiver was registered, on whose thread the
+     * intent is delivered, or {@code null} to deliver the intent from the calling thread.
+     */
+    public static void deliver(final Context context,
+            final BroadcastReceiver receiver,
+            final Intent intent,
+            Handler handler) {
+
+        if (null == intent) {
+            return;
+        }
+
+        synchronized (DELIVERED_ACTIONS) {
+            DELIVERED_ACTIONS.put(receiver, intent.getAction());
+        }
+
+        Runnable delivery = new Runnable() {
+
+            @Override
+            public void run() {
+                DELIVERING_RECEIVER.set(receiver);
+                try {
+                    receiver.onReceive(context, intent);
+                } finally {
+                    DELIVERING_RECEIVER.remove();
+                }
+            }
+        };
+
+        if (null == handler) {
+            delivery.run();
+        } else {
+            handler.post(delivery);
+        }
+    }
+
+    /**
+     * Query whether a broadcast received by a receiver is the delivery by the system of the
+     * sticky intent that was already delivered on registration.
+     *
+     * @param receiver the receiver of the broadcast.
+     * @param intent the intent of the broadcast.
+     *
+     * @return {@code true} if the broadcast should be ignored.
+     */
+    public static boolean isRedelivery(BroadcastReceiver receiver, Intent intent) {
+
+        if (!receiver.isInitialStickyBroadcast() || receiver == DELIVERING_RECEIVER.get()) {
+            return false;
+        }
+
+        synchronized (DELIVERED_ACTIONS) {
+            String action = DELIVERED_ACTIONS.get(receiver);
+            if (null == action || !action.equals(intent.getAction())) {
+                return false;
+            }
+
+            DELIVERED_ACTIONS.remove(receiver);
+            return true;
+        }
+    }
+}
@@ -16,9 +16,7 @@
 
 package com.fjordnet.sample.autoreceiver;
 
-import android.content.BroadcastReceiver;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.os.BatteryManager;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
@@ -27,6 +25,8 @@ import android.view.MenuItem;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.fjordnet.autoreceiver.LocalBroadcasts;
+import com.fjordnet.autoreceiver.annotations.Extra;
 import com.fjordnet.autoreceiver.annotations.OnReceiveBroadcast;
 
 import java.text.DateFormat;
@@ -70,7 +70,8 @@ public class MainActivity extends AppCompatActivity {
         powerView = (TextView) findViewById(R.id.powerStatus);
 
         findViewById(R.id.broadcast).setOnClickListener(
-                view -> sendBroadcast(new Intent(AppConstants.BROADCAST_ACTION_AUTO_RECEIVER)));
+                view -> LocalBroadcasts.send(this,
+                        new Intent(AppConstants.BROADCAST_ACTION_AUTO_RECEIVER)));
 
         init();
     }
@@ -87,8 +88,6 @@ public class MainActivity extends AppCompatActivity {
 
         timeFormat = android.text.format.DateFormat.getTimeFormat(this);
         updateTimeView();
-
-        updatePowerState(registerReceiver(null, new IntentFilter(ACTION_BATTERY_CHANGED)));
     }
 
     @OnReceiveBroadcast(value = ACTION_TIME_TICK, registerIn = "onResume", unregisterIn = "onPause")
@@ -96,19 +95,29 @@ public class MainActivity extends AppCompatActivity {
         updateTimeView();
     }
 
+    @OnReceiveBroadcast(value = ACTION_BATTERY_CHANGED, sticky = true)
+    public void onBatteryChanged(
+            @Extra(value = BatteryManager.EXTRA_STATUS, defaultValue = "-1") int status) {
+        // Invoked with the current battery state as soon as the receiver is registered.
+        updatePowerState(status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL);
+    }
+
     @OnReceiveBroadcast({ACTION_POWER_CONNECTED, ACTION_POWER_DISCONNECTED})
-    public void onPowerStateChanged(Intent intent, BroadcastReceiver receiver) {
-        updatePowerState(intent);
+    public void onPowerStateChanged(int actionIndex) {
+        // The index of the broadcast action within the annotation's actions.
+        updatePowerState(0 == actionIndex);
     }
 
     @OnReceiveBroadcast(value = AppConstants.BROADCAST_ACTION_AUTO_RECEIVER,
             registerIn = "init",
-            unregisterIn = "deinit")
+            unregisterIn = "deinit",
+            local = true)
     protected void onCustomBroadcast(Intent intent) {
         Toast.makeText(this, R.string.toast_custom_broadcast, LENGTH_SHORT).show();
     }
 
-    @OnReceiveBroadcast(Intent.ACTION_BATTERY_LOW)
+    @OnReceiveBroadcast(value = Intent.ACTION_BATTERY_LOW, deferred = true)
     protected void onLowBattery(Intent intent) {
         Toast.makeText(this, "Low Battery!", Toast.LENGTH_SHORT).show();
     }
@@ -123,21 +132,7 @@ public class MainActivity extends AppCompatActivity {
         timeView.setText(timeFormat.format(System.currentTimeMillis()));
     }
 
-    private void updatePowerState(Intent intent) {
-
-        boolean isCharging;
-
-        String action = intent.getAction();
-        if (ACTION_POWER_CONNECTED.equals(action)) {
-            isCharging = true;
-        } else if (ACTION_POWER_DISCONNECTED.equals(action)) {
-            isCharging = false;
-        } else {
-            int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
-            isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING
-                    || status == BatteryManager.BATTERY_STATUS_FULL;
-        }
-
+    private void updatePowerState(boolean isCharging) {
         powerView.setText(isCharging ? R.string.charging : R.string.discharging);
     }
 }
@@ -29,6 +29,8 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.fjordnet.autoreceiver.DispatchThreads;
+import com.fjordnet.autoreceiver.annotations.Extra;
 import com.fjordnet.autoreceiver.annotations.OnReceiveBroadcast;
 
 
@@ -74,26 +76,34 @@ public class SampleFragment extends HeadsetStateFragment {
     }
 
     protected void refreshConnectionState() {
+        connectionState.setText(getConnectionState());
+    }
+
+    @StringRes
+    protected int getConnectionState() {
 
         NetworkInfo info = ((ConnectivityManager) getContext().getSystemService(
                 Context.CONNECTIVITY_SERVICE)).getActiveNetworkInfo();
 
-        @StringRes int state = null != info && info.isConnectedOrConnecting()
+        return null != info && info.isConnectedOrConnecting()
                 ? R.string.state_connected
                 : R.string.state_disconnected;
-        connectionState.setText(state);
     }
 
-    @OnReceiveBroadcast({
-            ConnectivityManager.CONNECTIVITY_ACTION,
-            Intent.ACTION_AIRPLANE_MODE_CHANGED})
-    protected void onNetworkStateChanged(Intent intent) {
-
-        if (intent.getBooleanExtra(EXTRA_AIRPLANE_MODE, false)) {
-            connectionState.setText(R.string.state_airplane_mode);
-            return;
-        }
-
-        refreshConnectionState();
+    @OnReceiveBroadcast(
+            value = {
+                    ConnectivityManager.CONNECTIVITY_ACTION,
+                    Intent.ACTION_AIRPLANE_MODE_CHANGED},
+            thread = "network",
+            debounce = 500,
+            shared = true)
+    protected void onNetworkStateChanged(@Extra(EXTRA_AIRPLANE_MODE) boolean isAirplaneMode) {
+
+        // Invoked on a background thread: only the UI is updated on the main thread.
+        @StringRes final int state = isAirplaneMode
+                ? R.string.state_airplane_mode
+                : getConnectionState();
+
+        DispatchThreads.runOnMainThread(() -> connectionState.setText(state));
     }
 }